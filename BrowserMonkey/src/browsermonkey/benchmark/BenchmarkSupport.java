@@ -0,0 +1,135 @@
+package browsermonkey.benchmark;
+
+import browsermonkey.utility.*;
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * What the checks and benchmarks share: reading their arguments and pages,
+ * and collecting the conformance errors logged while they run.
+ * @author Paul Calcraft
+ */
+final class BenchmarkSupport {
+    /**
+     * Collects the conformance errors logged, instead of logging them.
+     */
+    static class ErrorCollector extends Handler {
+        private List<String> errors = new ArrayList<String>();
+
+        @Override
+        public void publish(LogRecord record) {
+            errors.add(record.getMessage());
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Returns the messages collected, which can be cleared between runs.
+         * @return
+         */
+        List<String> getErrors() {
+            return errors;
+        }
+    }
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Splits arguments into files and options, each option being a name
+     * starting with - followed by its value.
+     * @param args
+     * @param files the list to add the files to
+     * @return the values of the options, by name
+     */
+    static Map<String, String> parseArguments(String[] args, List<File> files) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-") && i+1 < args.length)
+                options.put(args[i], args[++i]);
+            else
+                files.add(new File(args[i]));
+        }
+        return options;
+    }
+
+    static long getLong(Map<String, String> options, String name, long defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    static double getDouble(Map<String, String> options, String name, double defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Lists a page, or every page in a directory, in order of their names.
+     * @param file
+     * @param pages the list to add the pages' files to
+     */
+    static void listPages(File file, List<File> pages) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            Arrays.sort(files);
+            for (File child : files)
+                listPages(child, pages);
+            return;
+        }
+        pages.add(file);
+    }
+
+    /**
+     * Reads a page as UTF-8.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static String readPage(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return new String(IOUtility.readStream(input, (int)file.length(), file.getName()), "UTF-8");
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads a page as UTF-8, or every page in a directory, in order of their
+     * names.
+     * @param file
+     * @param pages the list to add the pages to
+     * @throws IOException
+     */
+    static void addPages(File file, List<String> pages) throws IOException {
+        List<File> files = new ArrayList<File>();
+        listPages(file, files);
+        for (File page : files)
+            pages.add(readPage(page));
+    }
+
+    /**
+     * Stops logging, and collects the conformance errors logged from now on.
+     * @param message the first message, logged to set up the logger, then
+     * discarded
+     * @return the collector
+     */
+    static ErrorCollector collectErrors(String message) {
+        LogManager.getLogManager().reset();
+        BrowserMonkeyLogger.conformance(message);
+        Logger logger = Logger.getLogger("uk.ac.sussex.browsermonkey");
+        for (Handler handler : logger.getHandlers())
+            logger.removeHandler(handler);
+        logger.setUseParentHandlers(false);
+        ErrorCollector collector = new ErrorCollector();
+        logger.addHandler(collector);
+        return collector;
+    }
+}
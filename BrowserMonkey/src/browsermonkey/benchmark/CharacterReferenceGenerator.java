@@ -0,0 +1,103 @@
+package browsermonkey.benchmark;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Generates the <code>CharacterReferenceData</code> source of the SDK from
+ * the WHATWG list of named character references, so the table can be brought
+ * up to date with the list.
+ * <pre>
+ * CharacterReferenceGenerator &lt;entities.json&gt; &lt;CharacterReferenceData.java&gt;
+ * </pre>
+ * where entities.json is a copy of https://html.spec.whatwg.org/entities.json
+ * and the source is written to the second file.
+ * @author Paul Calcraft
+ */
+public class CharacterReferenceGenerator {
+    // An entry of the list, e.g. "&amp;": { "codepoints": [38], ...
+    private static final Pattern ENTRY = Pattern.compile("\"&([^\"]+)\"\\s*:\\s*\\{\\s*\"codepoints\"\\s*:\\s*\\[([^\\]]*)\\]");
+
+    // The longest line of entries, not counting its indent and quotes.
+    private static final int LINE_LENGTH = 68;
+
+    private static String read(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1)
+                text.append(buffer, 0, read);
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: CharacterReferenceGenerator <entities.json> <CharacterReferenceData.java>");
+            System.exit(1);
+        }
+
+        // Names are ASCII, so their natural order is the order of their code
+        // points, which the trie is built in.
+        SortedMap<String, String> entries = new TreeMap<String, String>();
+        Matcher matcher = ENTRY.matcher(read(new File(args[0])));
+        while (matcher.find()) {
+            StringBuilder codePoints = new StringBuilder();
+            for (String codePoint : matcher.group(2).split(",")) {
+                if (codePoints.length() > 0)
+                    codePoints.append('+');
+                codePoints.append(Integer.toHexString(Integer.parseInt(codePoint.trim())).toUpperCase());
+            }
+            entries.put(matcher.group(1), codePoints.toString());
+        }
+        if (entries.isEmpty()) {
+            System.out.println("No entries found in "+args[0]);
+            System.exit(1);
+        }
+
+        List<String> lines = new ArrayList<String>();
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String text = entry.getKey()+"="+entry.getValue();
+            if (line.length() > 0 && line.length()+1+text.length() > LINE_LENGTH) {
+                lines.add(line.toString());
+                line.setLength(0);
+            }
+            if (line.length() > 0)
+                line.append(' ');
+            line.append(text);
+        }
+        lines.add(line.toString());
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8");
+        try {
+            out.write("package browsermonkey.document;\n\n");
+            out.write("/**\n");
+            out.write(" * The named character references of HTML5, generated from the WHATWG list at\n");
+            out.write(" * https://html.spec.whatwg.org/entities.json by\n");
+            out.write(" * <code>browsermonkey.benchmark.CharacterReferenceGenerator</code>, so not to\n");
+            out.write(" * be edited by hand. Each entry is a name, including its ; if it has one, then\n");
+            out.write(" * =, then the code points it stands for in hexadecimal, separated by +, and\n");
+            out.write(" * entries are in order of their names.\n");
+            out.write(" * @author Paul Calcraft\n");
+            out.write(" */\n");
+            out.write("final class CharacterReferenceData {\n");
+            out.write("    static final int COUNT = "+entries.size()+";\n\n");
+            out.write("    static final String[] ENTRIES = {\n");
+            for (int i = 0; i < lines.size(); i++)
+                out.write("        \""+lines.get(i)+(i < lines.size()-1 ? "\",\n" : "\"\n"));
+            out.write("    };\n\n");
+            out.write("    private CharacterReferenceData() {\n");
+            out.write("    }\n");
+            out.write("}\n");
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote "+entries.size()+" entries to "+args[1]);
+    }
+}
@@ -0,0 +1,149 @@
+package browsermonkey.benchmark;
+
+import browsermonkey.utility.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * A directory of recorded HTTP responses, keyed by absolute URL, for replaying
+ * with <code>ReplayServer</code>. Each response is stored as a body file and a
+ * properties file holding its status and headers.
+ * @author Paul Calcraft
+ */
+public class Corpus {
+    /**
+     * A single recorded response.
+     */
+    public static class Recording {
+        private int status;
+        private String contentType;
+        private String location;
+        private byte[] body;
+
+        public Recording(int status, String contentType, String location, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.location = location;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the Content-Type header the response was recorded with.
+         * @return the header value, or null if there wasn't one
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Returns the Location header of a redirect.
+         * @return the header value, or null if there wasn't one
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    private File directory;
+
+    /**
+     * Constructs a corpus stored in the specified directory, which is created
+     * when the first response is recorded.
+     * @param directory
+     */
+    public Corpus(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the number of recorded responses.
+     * @return
+     */
+    public int size() {
+        String[] metadataFiles = directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".properties");
+            }
+        });
+        return metadataFiles == null ? 0 : metadataFiles.length;
+    }
+
+    /**
+     * Looks up the recorded response for a URL.
+     * @param url the absolute URL requested
+     * @return the response, or null if none was recorded
+     */
+    public Recording get(String url) {
+        String fileName = HttpCache.hash(url);
+        File metadataFile = new File(directory, fileName+".properties");
+        if (!metadataFile.isFile())
+            return null;
+        try {
+            Properties metadata = new Properties();
+            InputStream in = new FileInputStream(metadataFile);
+            try {
+                metadata.load(in);
+            } finally {
+                in.close();
+            }
+            File bodyFile = new File(directory, fileName+".body");
+            byte[] body;
+            in = new FileInputStream(bodyFile);
+            try {
+                body = IOUtility.readStream(in, (int)bodyFile.length(), url);
+            } finally {
+                in.close();
+            }
+            return new Recording(Integer.parseInt(metadata.getProperty("status")),
+                    metadata.getProperty("contentType"), metadata.getProperty("location"), body);
+        } catch (Exception ex) {
+            BrowserMonkeyLogger.warning("Could not read recorded response for "+url+": "+ex);
+            return null;
+        }
+    }
+
+    /**
+     * Records the response for a URL, replacing any previous recording.
+     * @param url the absolute URL requested
+     * @param recording
+     * @throws IOException
+     */
+    public synchronized void put(String url, Recording recording) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create corpus directory "+directory);
+
+        String fileName = HttpCache.hash(url);
+        OutputStream out = new FileOutputStream(new File(directory, fileName+".body"));
+        try {
+            out.write(recording.body);
+        } finally {
+            out.close();
+        }
+
+        Properties metadata = new Properties();
+        metadata.setProperty("url", url);
+        metadata.setProperty("status", Integer.toString(recording.status));
+        if (recording.contentType != null)
+            metadata.setProperty("contentType", recording.contentType);
+        if (recording.location != null)
+            metadata.setProperty("location", recording.location);
+        out = new FileOutputStream(new File(directory, fileName+".properties"));
+        try {
+            metadata.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package browsermonkey.benchmark;
+
+import browsermonkey.document.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that tokenising and parsing take time linear in the length of the
+ * page, whatever the page, by timing adversarial pages built to hit the
+ * slowest paths at two sizes, and failing if the larger takes much more than
+ * proportionally longer. Each page is parsed from a <code>String</code>, from
+ * a <code>Reader</code>, and tokenised in parallel.
+ * <pre>
+ * LinearTimeCheck [options]
+ * </pre>
+ * where the options are:
+ * <pre>
+ * -size n            characters of the smaller pages (50000)
+ * -scale n           times larger the larger pages are (8)
+ * -tolerance n       most the time may grow by beyond the scale (3)
+ * -iterations n      timed runs, the fastest of which is taken (3)
+ * </pre>
+ * @author Paul Calcraft
+ */
+public class LinearTimeCheck {
+    /**
+     * Makes an adversarial page of about a given length.
+     */
+    private static abstract class Page {
+        private final String name;
+
+        Page(String name) {
+            this.name = name;
+        }
+
+        abstract String make(int length);
+    }
+
+    // Repeats a string to make up a page.
+    private static String repeat(String prefix, String repeated, String suffix, int length) {
+        StringBuilder page = new StringBuilder(length+prefix.length()+suffix.length());
+        page.append(prefix);
+        while (page.length() < length)
+            page.append(repeated);
+        page.append(suffix);
+        return page.toString();
+    }
+
+    private static final Page[] PAGES = {
+        new Page("unclosed elements") {
+            String make(int length) {
+                return repeat("", "<b>", "", length);
+            }
+        },
+        new Page("stray end tags under unclosed elements") {
+            String make(int length) {
+                return repeat(repeat("", "<i>", "", length/2), "</b>", "", length);
+            }
+        },
+        new Page("text under unclosed pre elements") {
+            String make(int length) {
+                return repeat("", "<pre>x ", "", length);
+            }
+        },
+        new Page("elements closed from the bottom of the stack") {
+            String make(int length) {
+                return repeat("<i>", "<b><em>x</i><i>", "", length);
+            }
+        },
+        new Page("unclosed tags") {
+            String make(int length) {
+                return repeat("", "<a ", "", length);
+            }
+        },
+        new Page("a tag of attribute names") {
+            String make(int length) {
+                return repeat("<a ", "b c ", ">", length);
+            }
+        },
+        new Page("a tag of unended attributes") {
+            String make(int length) {
+                return repeat("<a ", "b= ", ">", length);
+            }
+        },
+        new Page("a tag with one long name") {
+            String make(int length) {
+                return repeat("<a ", "bbbbbbbb", ">", length);
+            }
+        },
+        new Page("unended comments") {
+            String make(int length) {
+                return repeat("", "<!-- -- >", "", length);
+            }
+        },
+        new Page("titles") {
+            String make(int length) {
+                return repeat("", "<title></titl", "", length);
+            }
+        },
+        new Page("unended scripts") {
+            String make(int length) {
+                return repeat("", "<script></scrip<p>", "", length);
+            }
+        },
+        new Page("lone angle brackets") {
+            String make(int length) {
+                return repeat("", "<<>>< >", "", length);
+            }
+        },
+        new Page("unfinished character references") {
+            String make(int length) {
+                return repeat("", "&NotNestedGreaterGreate&#x", "", length);
+            }
+        },
+        new Page("distinct tag names with the same hash") {
+            String make(int length) {
+                // "c-" and "ak" have the same String hash, so names made of
+                // them all have the same hash too.
+                StringBuilder page = new StringBuilder(length+64);
+                for (int i = 0; page.length() < length; i++) {
+                    page.append('<');
+                    for (int bit = 0; bit < 20; bit++)
+                        page.append((i & 1 << bit) == 0 ? "c-" : "ak");
+                    page.append('>');
+                }
+                return page.toString();
+            }
+        },
+        new Page("nested lists and tables") {
+            String make(int length) {
+                return repeat("", "<li><td>x", "", length);
+            }
+        }
+    };
+
+    // Characters tokenised by each task in parallel, fixed so that larger
+    // pages have more chunks.
+    private static final int CHUNK_SIZE = 16*1024;
+
+    // Parses a page one of the ways it's checked, returning the time taken
+    // in nanoseconds.
+    private static long parse(String page, int way) {
+        Tokeniser.setParallelTokenising(way == 2 ? 1 : 0, CHUNK_SIZE);
+        long start = System.nanoTime();
+        Parser parser = way == 1 ? new Parser(new StringReader(page)) : new Parser(page);
+        parser.parse();
+        return System.nanoTime()-start;
+    }
+
+    private static long fastest(String page, int way, int iterations) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < iterations; i++)
+            best = Math.min(best, parse(page, way));
+        return best;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i+1 < args.length; i += 2)
+            options.put(args[i], args[i+1]);
+        // Conformance errors are expected.
+        java.util.logging.LogManager.getLogManager().reset();
+
+        int size = (int)BenchmarkSupport.getLong(options, "-size", 50000);
+        int scale = (int)BenchmarkSupport.getLong(options, "-scale", 8);
+        double tolerance = BenchmarkSupport.getLong(options, "-tolerance", 3);
+        int iterations = (int)BenchmarkSupport.getLong(options, "-iterations", 3);
+        String[] ways = {"string", "reader", "parallel"};
+
+        int failures = 0;
+        for (Page page : PAGES) {
+            String small = page.make(size);
+            String large = page.make(size*scale);
+            for (int way = 0; way < ways.length; way++) {
+                // Warm up on the small page first.
+                fastest(small, way, iterations);
+                long smallTime = fastest(small, way, iterations);
+                long largeTime = fastest(large, way, iterations);
+                // Allow for timer resolution on very quick pages.
+                double growth = Math.max(largeTime, 1000000)/(double)Math.max(smallTime, 1000000/scale);
+                boolean linear = growth <= scale*tolerance;
+                if (!linear)
+                    failures++;
+                System.out.println(String.format("%-45s %-8s %8.1f ms %8.1f ms  %5.1fx %s", page.name, ways[way],
+                        smallTime/1e6, largeTime/1e6, growth, linear ? "" : "NOT LINEAR"));
+            }
+        }
+        Tokeniser.setParallelTokenising(0, 1024*1024);
+        System.out.println(failures+" pages grew faster than linearly");
+        if (failures != 0)
+            System.exit(1);
+    }
+}
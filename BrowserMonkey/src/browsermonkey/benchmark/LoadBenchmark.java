@@ -0,0 +1,203 @@
+package browsermonkey.benchmark;
+
+import browsermonkey.document.*;
+import browsermonkey.render.*;
+import browsermonkey.utility.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Benchmarks loading pages through the whole pipeline, from
+ * <code>Document.load</code> to <code>Renderer.renderRoot</code>, against a
+ * recorded corpus served under simulated network conditions, so the results
+ * are reproducible offline. Pages are first recorded with
+ * <pre>
+ * LoadBenchmark record &lt;corpus&gt; &lt;url&gt;...
+ * </pre>
+ * which loads each page and its resources through a recording
+ * <code>ReplayServer</code>. They are then benchmarked with
+ * <pre>
+ * LoadBenchmark replay &lt;corpus&gt; &lt;url&gt;... [options]
+ * </pre>
+ * where the options are:
+ * <pre>
+ * -iterations n      timed runs over every page (10)
+ * -warmup n          untimed runs first (2)
+ * -latency ms        delay before each response (0)
+ * -jitter ms         maximum random addition to the latency (0)
+ * -bandwidth bytes   per second cap on each response (unlimited)
+ * -404 rate          fraction of responses replaced by 404s (0)
+ * -timeout rate      fraction of responses never sent (0)
+ * -drip rate         fraction of responses sent a few bytes at a time (0)
+ * -readTimeout ms    the browser's read timeout while benchmarking (5000)
+ * -seed n            seed for latencies and faults (0)
+ * -warm              keep the caches between runs
+ * </pre>
+ * The HTTP cache is kept in a temporary directory while recording or
+ * replaying, so the browser's own cache is left alone.
+ * @author Paul Calcraft
+ */
+public class LoadBenchmark {
+    // Shared across page loads, as the browser's document panel does.
+    private Renderer renderer = new Renderer(new Linkable() {
+        public void followLink(String path) {
+        }
+    });
+    // Load and render times of every timed page load, in nanoseconds. Render
+    // times include waiting for the page's resources.
+    private List<Long> loadTimes = new ArrayList<Long>();
+    private List<Long> renderTimes = new ArrayList<Long>();
+    private int errorCount;
+
+    // Loads and renders a page, returning the document.
+    private Document loadPage(String url, boolean timed) {
+        long start = System.nanoTime();
+        Document document = new Document(url, null);
+        document.load();
+        long loaded = System.nanoTime();
+        renderer.renderRoot(document.getNodeTree(), 1.0f, document.getURL());
+        renderer.waitForResources();
+        long rendered = System.nanoTime();
+
+        if (timed) {
+            loadTimes.add(loaded-start);
+            renderTimes.add(rendered-loaded);
+            if (document.getError() != 0)
+                errorCount++;
+        }
+        return document;
+    }
+
+    // Empties the caches so each run loads from the server.
+    private static void clearCaches() {
+        IOUtility.getHttpCache().clear();
+        Renderer.getResourceCache().clear();
+    }
+
+    // Moves the HTTP cache to a new temporary directory, so the browser's
+    // own cache is neither used nor cleared, returning the directory.
+    private static File useTemporaryCache() throws IOException {
+        File directory = File.createTempFile("browsermonkey", ".cache");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Could not create cache directory "+directory);
+        IOUtility.getHttpCache().setDirectory(directory);
+        return directory;
+    }
+
+    // Moves the HTTP cache back to its previous directory and deletes the
+    // temporary one.
+    private static void restoreCache(File previousDirectory, File directory) {
+        IOUtility.getHttpCache().setDirectory(previousDirectory);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    private static String summarise(String name, List<Long> times) {
+        if (times.isEmpty())
+            return name+": no runs";
+        List<Long> sorted = new ArrayList<Long>(times);
+        Collections.sort(sorted);
+        long total = 0;
+        for (long time : sorted)
+            total += time;
+        return String.format("%-8s min %8.2f ms  median %8.2f ms  mean %8.2f ms  max %8.2f ms", name+":",
+                sorted.get(0)/1e6, sorted.get(sorted.size()/2)/1e6, total/1e6/sorted.size(), sorted.get(sorted.size()-1)/1e6);
+    }
+
+    private static void record(Corpus corpus, List<String> urls) throws IOException {
+        ReplayServer server = new ReplayServer(corpus, new NetworkConditions());
+        server.setRecording(true);
+        server.start(0);
+        server.useAsProxy();
+        File previousCache = IOUtility.getHttpCache().getDirectory();
+        File cache = useTemporaryCache();
+        try {
+            clearCaches();
+            LoadBenchmark benchmark = new LoadBenchmark();
+            for (String url : urls) {
+                Document document = benchmark.loadPage(url, false);
+                System.out.println("Recorded "+url+(document.getError() != 0 ? " (error "+document.getError()+")" : ""));
+            }
+            System.out.println(server.getRequestCount()+" responses recorded, corpus has "+corpus.size()+".");
+        } finally {
+            restoreCache(previousCache, cache);
+            server.stopUsingAsProxy();
+            server.stop();
+        }
+    }
+
+    private static void replay(Corpus corpus, List<String> urls, Map<String, String> options) throws IOException {
+        NetworkConditions conditions = new NetworkConditions();
+        conditions.setLatency(BenchmarkSupport.getLong(options, "-latency", 0), BenchmarkSupport.getLong(options, "-jitter", 0));
+        conditions.setBandwidth(BenchmarkSupport.getLong(options, "-bandwidth", 0));
+        conditions.setFaultRates(BenchmarkSupport.getDouble(options, "-404", 0), BenchmarkSupport.getDouble(options, "-timeout", 0), BenchmarkSupport.getDouble(options, "-drip", 0));
+        conditions.setSeed(BenchmarkSupport.getLong(options, "-seed", 0));
+        int iterations = (int)BenchmarkSupport.getLong(options, "-iterations", 10);
+        int warmup = (int)BenchmarkSupport.getLong(options, "-warmup", 2);
+        boolean warm = options.containsKey("-warm");
+        HttpTransport.setReadTimeout((int)BenchmarkSupport.getLong(options, "-readTimeout", 5000));
+        conditions.setStallTime(HttpTransport.getReadTimeout()*2);
+
+        ReplayServer server = new ReplayServer(corpus, conditions);
+        server.start(0);
+        server.useAsProxy();
+        File previousCache = IOUtility.getHttpCache().getDirectory();
+        File cache = useTemporaryCache();
+        try {
+            System.out.println("Replaying "+urls.size()+" pages from "+corpus.size()+" recorded responses, "+conditions);
+            LoadBenchmark benchmark = new LoadBenchmark();
+            for (int i = 0; i < warmup+iterations; i++) {
+                for (String url : urls) {
+                    if (!warm)
+                        clearCaches();
+                    benchmark.loadPage(url, i >= warmup);
+                }
+            }
+
+            System.out.println(summarise("load", benchmark.loadTimes));
+            System.out.println(summarise("render", benchmark.renderTimes));
+            System.out.println(benchmark.loadTimes.size()+" page loads, "+benchmark.errorCount+" failed; "
+                    +server.getRequestCount()+" requests, "+server.getMissCount()+" not recorded, faults injected: 404 "
+                    +server.getFaultCount(NetworkConditions.Fault.NOT_FOUND)+", timeout "
+                    +server.getFaultCount(NetworkConditions.Fault.TIMEOUT)+", drip "
+                    +server.getFaultCount(NetworkConditions.Fault.SLOW_DRIP));
+            System.out.println("Fetch scheduler: "+IOUtility.getFetchScheduler().getStatistics());
+        } finally {
+            restoreCache(previousCache, cache);
+            server.stopUsingAsProxy();
+            server.stop();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || !(args[0].equals("record") || args[0].equals("replay"))) {
+            System.err.println("Usage: LoadBenchmark record <corpus> <url>...");
+            System.err.println("       LoadBenchmark replay <corpus> <url>... [options]");
+            System.exit(1);
+        }
+        // Rendering doesn't need a display.
+        if (System.getProperty("java.awt.headless") == null)
+            System.setProperty("java.awt.headless", "true");
+
+        Corpus corpus = new Corpus(new File(args[1]));
+        List<String> urls = new ArrayList<String>();
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-warm"))
+                options.put(args[i], "");
+            else if (args[i].startsWith("-") && i+1 < args.length)
+                options.put(args[i], args[++i]);
+            else
+                urls.add(args[i]);
+        }
+
+        if (args[0].equals("record"))
+            record(corpus, urls);
+        else
+            replay(corpus, urls, options);
+    }
+}
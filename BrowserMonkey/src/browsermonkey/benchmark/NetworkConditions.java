@@ -0,0 +1,182 @@
+package browsermonkey.benchmark;
+
+import java.util.*;
+
+/**
+ * The simulated network conditions a <code>ReplayServer</code> serves under:
+ * latency before each response, a bandwidth cap on each response body, and
+ * faults injected at random into a fraction of responses. The choices for
+ * each request come from a random sequence seeded by the seed, the URL and how
+ * many times it has been requested, so a run is reproducible however the
+ * requests interleave.
+ * @author Paul Calcraft
+ */
+public class NetworkConditions {
+    /**
+     * A fault injected into a response.
+     */
+    public enum Fault {
+        /**
+         * Serve the response normally.
+         */
+        NONE,
+        /**
+         * Respond with 404 Not Found instead.
+         */
+        NOT_FOUND,
+        /**
+         * Never respond, holding the connection open until the stall time.
+         */
+        TIMEOUT,
+        /**
+         * Send the body a few bytes at a time.
+         */
+        SLOW_DRIP
+    }
+
+    private long latency;
+    private long jitter;
+    private long bandwidth;
+    private double notFoundRate;
+    private double timeoutRate;
+    private double slowDripRate;
+    private long stallTime = 60*1000;
+    private int dripSize = 64;
+    private long dripInterval = 100;
+    private long seed;
+    // Number of times each URL has been requested since the seed was set.
+    private Map<String, Integer> requestCounts = new HashMap<String, Integer>();
+
+    /**
+     * Constructs conditions with no latency, unlimited bandwidth and no faults.
+     */
+    public NetworkConditions() {
+    }
+
+    /**
+     * Sets the delay before each response is sent.
+     * @param milliseconds the fixed part of the delay
+     * @param jitter the maximum random addition to the delay, in milliseconds
+     */
+    public void setLatency(long milliseconds, long jitter) {
+        latency = milliseconds;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Caps the rate each response body is sent at.
+     * @param bytesPerSecond the cap, or 0 for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        bandwidth = bytesPerSecond;
+    }
+
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Sets the fraction of responses, from 0 to 1, that each fault is injected
+     * into.
+     * @param notFound
+     * @param timeout
+     * @param slowDrip
+     */
+    public void setFaultRates(double notFound, double timeout, double slowDrip) {
+        notFoundRate = notFound;
+        timeoutRate = timeout;
+        slowDripRate = slowDrip;
+    }
+
+    /**
+     * Sets how long a timed out response holds its connection open before
+     * giving up. Should be longer than the client's read timeout.
+     * @param milliseconds
+     */
+    public void setStallTime(long milliseconds) {
+        stallTime = milliseconds;
+    }
+
+    public long getStallTime() {
+        return stallTime;
+    }
+
+    /**
+     * Sets how a slow drip response is sent: a few bytes, then a pause.
+     * @param bytes the number of bytes sent at a time
+     * @param milliseconds the pause between them
+     */
+    public void setDrip(int bytes, long milliseconds) {
+        dripSize = bytes;
+        dripInterval = milliseconds;
+    }
+
+    public int getDripSize() {
+        return dripSize;
+    }
+
+    public long getDripInterval() {
+        return dripInterval;
+    }
+
+    /**
+     * Sets the seed latencies and faults are chosen with, and restarts the
+     * count of requests for each URL.
+     * @param seed
+     */
+    public synchronized void setSeed(long seed) {
+        this.seed = seed;
+        requestCounts.clear();
+    }
+
+    public synchronized long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Returns the random sequence to make the choices for a request with.
+     * @param url the absolute URL requested
+     * @return
+     */
+    public synchronized Random nextRandom(String url) {
+        Integer count = requestCounts.get(url);
+        count = count == null ? 0 : count+1;
+        requestCounts.put(url, count);
+        return new Random(seed*31*31+url.hashCode()*31+count);
+    }
+
+    /**
+     * Chooses the latency for a response.
+     * @param random the request's random sequence
+     * @return the delay in milliseconds
+     */
+    public long chooseLatency(Random random) {
+        if (jitter <= 0)
+            return latency;
+        return latency+(long)(random.nextDouble()*jitter);
+    }
+
+    /**
+     * Chooses the fault to inject into a response.
+     * @param random the request's random sequence
+     * @return
+     */
+    public Fault chooseFault(Random random) {
+        double roll = random.nextDouble();
+        if (roll < notFoundRate)
+            return Fault.NOT_FOUND;
+        roll -= notFoundRate;
+        if (roll < timeoutRate)
+            return Fault.TIMEOUT;
+        roll -= timeoutRate;
+        if (roll < slowDripRate)
+            return Fault.SLOW_DRIP;
+        return Fault.NONE;
+    }
+
+    @Override
+    public String toString() {
+        return "latency "+latency+"+"+jitter+" ms, bandwidth "+(bandwidth == 0 ? "unlimited" : bandwidth+" B/s")
+                +", faults 404 "+notFoundRate+" timeout "+timeoutRate+" drip "+slowDripRate+", seed "+seed;
+    }
+}
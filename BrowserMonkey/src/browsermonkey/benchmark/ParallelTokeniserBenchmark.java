@@ -0,0 +1,165 @@
+package browsermonkey.benchmark;
+
+import browsermonkey.document.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that tokenising pages in parallel gives exactly the tokens and
+ * conformance errors of tokenising them in order, then times both on a very
+ * large page. Pages are checked with chunks of several sizes, down to a
+ * single character, so that chunk edges fall inside every kind of token; as
+ * well as the given pages, randomly generated ones are checked, made of
+ * fragments of comments, titles, scripts, unclosed and empty tags.
+ * <pre>
+ * ParallelTokeniserBenchmark [&lt;file or directory&gt;...] [options]
+ * </pre>
+ * where the options are:
+ * <pre>
+ * -random n          random pages to check (2000)
+ * -seed n            seed for the random pages (0)
+ * -size n            characters of the page timed (32000000)
+ * -chunk n           characters tokenised by each task when timing (1048576)
+ * -iterations n      timed passes (10)
+ * -warmup n          untimed passes first (3)
+ * </pre>
+ * @author Paul Calcraft
+ */
+public class ParallelTokeniserBenchmark {
+    // Chunk sizes pages are checked with.
+    private static final int[] CHECK_CHUNK_SIZES = {1, 2, 3, 7, 16, 61, 256, 4096};
+    // What random pages are made of.
+    private static final String[] FRAGMENTS = {
+        "<!--", "-->", "--", "<title>", "</title>", "</TITLE>", "<", ">", "< >", "</>",
+        "<p>", "</p>", "<b>", "</b>", "<a href=\"x>y\">", "<td align='l'>", "text ", "  ",
+        "\n", "&amp;", "<br/>", "<TiTlE>", "</ title>", "<\u00e9m>", "-", "!", "<script>",
+        "</script>", "<STYLE>", "</style >", "</scrip"
+    };
+    // A fragment that makes a nameless tag, which the tokeniser gives up on.
+    private static final String NAMELESS_TAG = "<?>";
+
+    private static BenchmarkSupport.ErrorCollector collector;
+
+    private static String randomPage(Random random) {
+        StringBuilder page = new StringBuilder();
+        int length = random.nextInt(40);
+        for (int i = 0; i < length; i++) {
+            // Nameless tags end tokenising, so are rare.
+            if (random.nextInt(200) == 0)
+                page.append(NAMELESS_TAG);
+            else
+                page.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        }
+        return page.toString();
+    }
+
+    // Generates a large page of paragraphs, tables, comments and a title.
+    private static String largePage(int length, Random random) {
+        StringBuilder page = new StringBuilder(length+1024);
+        page.append("<html><head><title>Large page</title></head><body>\n");
+        while (page.length() < length) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    page.append("<!-- section ").append(page.length()).append(" -->\n");
+                    break;
+                case 1:
+                    page.append("<table border=\"1\"><tr><td align=\"left\">cell</td><td>")
+                            .append(random.nextInt()).append("</td></tr></table>\n");
+                    break;
+                default:
+                    page.append("<p>");
+                    int words = 20+random.nextInt(200);
+                    for (int i = 0; i < words; i++)
+                        page.append(random.nextInt(16) == 0 ? "<b>bold</b> " : "word ");
+                    page.append("</p>\n");
+            }
+        }
+        page.append("</body></html>");
+        return page.toString();
+    }
+
+    // Describes the tokens of a page and the errors logged, ending with the
+    // exception tokenising it throws, if any.
+    private static String describe(String page, int chunkSize) {
+        Tokeniser.setParallelTokenising(chunkSize > 0 ? 1 : 0, Math.max(1, chunkSize));
+        collector.getErrors().clear();
+        StringBuilder result = new StringBuilder();
+        Tokeniser tokeniser = new Tokeniser(page);
+        try {
+            Token token;
+            while ((token = tokeniser.nextToken()) != null)
+                result.append(token.getType()).append(' ').append(token.isEndTag()).append(' ')
+                        .append(token.getTag()).append(' ').append(token.getFullTag()).append('\n');
+            result.append(tokeniser.isConformant()).append('\n');
+        } catch (RuntimeException ex) {
+            result.append(ex.getClass().getName()).append('\n');
+        }
+        for (String error : collector.getErrors())
+            result.append(error).append('\n');
+        return result.toString();
+    }
+
+    // Checks a page with every chunk size, returning the number that differ.
+    private static int check(String page) {
+        String expected = describe(page, 0);
+        int mismatches = 0;
+        for (int chunkSize : CHECK_CHUNK_SIZES) {
+            if (!expected.equals(describe(page, chunkSize))) {
+                System.out.println("Mismatch with chunks of "+chunkSize+" for page starting "
+                        +page.substring(0, Math.min(60, page.length())));
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private static long time(String page, int chunkSize) {
+        Tokeniser.setParallelTokenising(chunkSize > 0 ? 1 : 0, Math.max(1, chunkSize));
+        long start = System.nanoTime();
+        new Tokeniser(page).tokenise();
+        return System.nanoTime()-start;
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<File> files = new ArrayList<File>();
+        Map<String, String> options = BenchmarkSupport.parseArguments(args, files);
+        // Collect conformance errors instead of logging them.
+        collector = BenchmarkSupport.collectErrors("Checking parallel tokenising.");
+
+        List<String> pages = new ArrayList<String>();
+        for (File file : files)
+            BenchmarkSupport.addPages(file, pages);
+        Random random = new Random(BenchmarkSupport.getLong(options, "-seed", 0));
+        long randomCount = BenchmarkSupport.getLong(options, "-random", 2000);
+        for (long i = 0; i < randomCount; i++)
+            pages.add(randomPage(random));
+
+        int mismatches = 0;
+        for (String page : pages)
+            mismatches += check(page);
+        String large = largePage((int)BenchmarkSupport.getLong(options, "-size", 32000000), random);
+        if (!describe(large, 0).equals(describe(large, 64*1024))) {
+            System.out.println("Mismatch for the large page");
+            mismatches++;
+        }
+        System.out.println("Checked "+(pages.size()+1)+" pages, "+mismatches+" mismatches");
+
+        int chunkSize = (int)BenchmarkSupport.getLong(options, "-chunk", 1024*1024);
+        int warmup = (int)BenchmarkSupport.getLong(options, "-warmup", 3);
+        int iterations = (int)BenchmarkSupport.getLong(options, "-iterations", 10);
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int i = 0; i < warmup+iterations; i++) {
+            for (int parallel = 0; parallel < 2; parallel++) {
+                long time = time(large, parallel == 1 ? chunkSize : 0);
+                if (i >= warmup)
+                    best[parallel] = Math.min(best[parallel], time);
+            }
+        }
+        System.out.println(String.format("%d characters, %d processors: in order %.1f ms, in parallel %.1f ms (%.1fx)",
+                large.length(), Runtime.getRuntime().availableProcessors(),
+                best[0]/1e6, best[1]/1e6, best[0]/(double)best[1]));
+        Tokeniser.setParallelTokenising(0, 1024*1024);
+        if (mismatches != 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,217 @@
+package browsermonkey.benchmark;
+
+import browsermonkey.document.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that a change leaves the parser's output alone, by dumping the tree
+ * and conformance of every page of a corpus with one version of the tree and
+ * comparing the pages' dumps with another. It also generates the two corpora
+ * the parser's changes are checked against, from a seed, so they needn't be
+ * kept:
+ * <ul>
+ * <li><code>fuzz</code>: 600 pages of known and unknown tags, attributes,
+ * entities, comments, scripts and stray &lt; and &gt; between text, every
+ * tenth page ten times longer than the others.</li>
+ * <li><code>adversarial</code>: 800 pages run together from fragments the
+ * parser corrects, such as unclosed tables, lists and pre, unended titles,
+ * comments and scripts, and broken tags.</li>
+ * </ul>
+ * <pre>
+ * ParseDump -generate fuzz|adversarial &lt;directory&gt; [-pages n] [-seed n]
+ * ParseDump &lt;file or directory&gt;... -write &lt;dump&gt; [-from string|reader]
+ * ParseDump &lt;file or directory&gt;... -compare &lt;dump&gt; [-from string|reader]
+ * </pre>
+ * A dump can be written with an older tree by compiling this class and
+ * <code>BenchmarkSupport</code> against it. Pages are parsed from a String, or
+ * from a Reader handing out a few characters at a time. Comparing lists the
+ * pages whose dumps differ, and exits 1 if any do.
+ * @author Paul Calcraft
+ */
+public class ParseDump {
+    // What fuzz pages are made of.
+    private static final String[] FUZZ_TAGS = {
+        "b", "i", "p", "table", "tr", "td", "th", "ul", "ol", "li", "pre", "br", "img", "hr", "title", "a",
+        "font", "div", "html", "body", "head", "script", "style", "center", "h1", "dl", "dt", "dd",
+        "blockquote", "span", "tt", "u", "em", "strong", "x-y", "TABLE", "Td", "P"
+    };
+    private static final String[] FUZZ_TEXT = {
+        "hello", " ", "  \n\t ", "world &amp; co", "&nbsp;&lt;x&gt;", "a<b", "1 > 2", "\r\n", "&#65;&#x42;",
+        "&copy;&bogus;&", " text  with   spaces ", "<", ">", "<>", "< / >", "<!-- c -->", "<!--", "-->", "</>",
+        "<a href='x y'>", "<img src=\"a.gif\" alt=z>", "<td colspan=2 id=\"q\">", "<br/>", "< b >", "</ b>",
+        "<x:y a-b=1>", "<p class=a class=b>", "<!doctype html>", "<?xml?>", "</title>", "<TITLE>T</Title>",
+        "<script>if (a<b) x='</p>';</script>", "<style>p>a{}</style>", "\u00e9\u4e2d"
+    };
+    // What adversarial pages are made of.
+    private static final String[] ADVERSARIAL_FRAGMENTS = {
+        "<b>", "</b>", "<i>", "</i>", "<pre>", "</pre>", "x ", "  \n", "<li>", "<td>", "<tr>", "</td>",
+        "</table>", "<ul>", "</li>", "<em>", "</em>", "<p>", "</p>", "<a ", "<x-y>", "</x-y>", "<title>",
+        "</titl", "<script>", "</scrip", "<!--", "-->", "<<>>< >", "<a b c d>", "<a b= >", "<foo>", "</foo>",
+        "</pre >", "<PRE>", "<th>", "</th>"
+    };
+
+    // The start of each page's dump.
+    private static final String PAGE_MARK = "== ";
+
+    /**
+     * Hands out a page a few characters at a time, so that the parser reads
+     * across as many boundaries as it can.
+     */
+    private static class PieceReader extends Reader {
+        private final String page;
+        private int position;
+        private final Random random = new Random(7);
+
+        private PieceReader(String page) {
+            this.page = page;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position >= page.length())
+                return -1;
+            int count = Math.min(Math.min(length, 1+random.nextInt(40)), page.length()-position);
+            page.getChars(position, position+count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static String fuzzPage(int number, Random random) {
+        StringBuilder page = new StringBuilder();
+        int length = random.nextInt(number%10 == 0 ? 2000 : 200);
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(10) < 4) {
+                String tag = FUZZ_TAGS[random.nextInt(FUZZ_TAGS.length)];
+                page.append(random.nextInt(3) == 0 ? "</" : "<").append(tag);
+                if (random.nextInt(4) == 0)
+                    page.append(" a=\"1\" b='2' c=3");
+                // The odd tag is left unended.
+                page.append(random.nextInt(20) == 0 ? "" : ">");
+            } else {
+                page.append(FUZZ_TEXT[random.nextInt(FUZZ_TEXT.length)]);
+            }
+        }
+        return page.toString();
+    }
+
+    private static String adversarialPage(Random random) {
+        StringBuilder page = new StringBuilder();
+        for (int i = 5+random.nextInt(296); i > 0; i--)
+            page.append(ADVERSARIAL_FRAGMENTS[random.nextInt(ADVERSARIAL_FRAGMENTS.length)]);
+        return page.toString();
+    }
+
+    private static void generate(String kind, File directory, Map<String, String> options) throws IOException {
+        boolean fuzz = kind.equals("fuzz");
+        if (!fuzz && !kind.equals("adversarial")) {
+            System.out.println("Unknown corpus: "+kind);
+            System.exit(1);
+        }
+        int pages = (int)BenchmarkSupport.getLong(options, "-pages", fuzz ? 600 : 800);
+        Random random = new Random(BenchmarkSupport.getLong(options, "-seed", fuzz ? 42 : 3));
+        directory.mkdirs();
+        for (int i = 0; i < pages; i++) {
+            String name = fuzz ? "f"+i+".html" : String.format("p%04d.html", i);
+            Writer out = new OutputStreamWriter(new FileOutputStream(new File(directory, name)), "UTF-8");
+            try {
+                out.write(fuzz ? fuzzPage(i, random) : adversarialPage(random));
+            } finally {
+                out.close();
+            }
+        }
+        System.out.println("Generated "+pages+" "+kind+" pages in "+directory);
+    }
+
+    // Dumps the tree parsed from a page and whether it's conformant, or the
+    // exception parsing it throws.
+    private static String dump(File file, boolean fromReader) throws IOException {
+        String page = BenchmarkSupport.readPage(file);
+        StringBuilder result = new StringBuilder();
+        try {
+            Parser parser = fromReader ? new Parser(new PieceReader(page)) : new Parser(page);
+            parser.parse();
+            result.append(PAGE_MARK).append(file.getName()).append(' ').append(parser.isConformant()).append('\n');
+            result.append(parser.getRootNode().toDebugString()).append('\n');
+        } catch (RuntimeException ex) {
+            result.append(PAGE_MARK).append(file.getName()).append(" EXC ").append(ex.getClass().getName()).append('\n');
+        }
+        return result.toString();
+    }
+
+    // Reads a dump back into the dumps of its pages, by name. Each starts at
+    // the start of a line, but text in a tree may have line breaks of any
+    // kind, so the dump is split only where one ends with \n.
+    private static Map<String, String> readDump(File file) throws IOException {
+        Map<String, String> dumps = new HashMap<String, String>();
+        String text = BenchmarkSupport.readPage(file);
+        int start = text.startsWith(PAGE_MARK) ? 0 : -1;
+        while (start != -1) {
+            int end = text.indexOf("\n"+PAGE_MARK, start);
+            end = end == -1 ? text.length() : end+1;
+            int nameEnd = start+PAGE_MARK.length();
+            while (nameEnd < end && text.charAt(nameEnd) != ' ' && text.charAt(nameEnd) != '\n')
+                nameEnd++;
+            dumps.put(text.substring(start+PAGE_MARK.length(), nameEnd), text.substring(start, end));
+            start = end < text.length() ? end : -1;
+        }
+        return dumps;
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<File> files = new ArrayList<File>();
+        Map<String, String> options = BenchmarkSupport.parseArguments(args, files);
+        // Conformance errors are expected.
+        java.util.logging.LogManager.getLogManager().reset();
+
+        if (options.containsKey("-generate")) {
+            if (files.size() != 1) {
+                System.out.println("Usage: ParseDump -generate fuzz|adversarial <directory> [-pages n] [-seed n]");
+                System.exit(1);
+            }
+            generate(options.get("-generate"), files.get(0), options);
+            return;
+        }
+
+        String write = options.get("-write");
+        String compare = options.get("-compare");
+        if (files.isEmpty() || (write == null) == (compare == null)) {
+            System.out.println("Usage: ParseDump <file or directory>... -write|-compare <dump> [-from string|reader]");
+            System.exit(1);
+        }
+        boolean fromReader = "reader".equals(options.get("-from"));
+        List<File> pages = new ArrayList<File>();
+        for (File file : files)
+            BenchmarkSupport.listPages(file, pages);
+
+        if (write != null) {
+            Writer out = new OutputStreamWriter(new FileOutputStream(write), "UTF-8");
+            try {
+                for (File page : pages)
+                    out.write(dump(page, fromReader));
+            } finally {
+                out.close();
+            }
+            System.out.println("Dumped "+pages.size()+" pages to "+write);
+            return;
+        }
+
+        Map<String, String> expected = readDump(new File(compare));
+        int differences = 0;
+        for (File page : pages) {
+            if (!dump(page, fromReader).equals(expected.get(page.getName()))) {
+                if (differences < 10)
+                    System.out.println("Differs: "+page.getName());
+                differences++;
+            }
+        }
+        System.out.println(differences+" of "+pages.size()+" pages differ from "+compare);
+        if (differences != 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,286 @@
+package browsermonkey.benchmark;
+
+import browsermonkey.utility.*;
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * A local HTTP server that stands in for the network, serving responses from a
+ * <code>Corpus</code> under simulated <code>NetworkConditions</code>. It acts
+ * as an HTTP proxy, so pages keep their original absolute URLs: once
+ * <code>useAsProxy</code> is called, every http request the browser makes is
+ * served from the corpus. In recording mode, requests are instead forwarded to
+ * the real server and the responses recorded into the corpus.
+ * <p>
+ * https requests can't be proxied this way, so only http sites can be
+ * recorded and replayed.
+ * @author Paul Calcraft
+ */
+public class ReplayServer {
+    // Size of the blocks bandwidth capped bodies are sent in.
+    private static final int THROTTLE_BLOCK_SIZE = 4096;
+    private static final String[] PROXY_PROPERTIES = {"http.proxyHost", "http.proxyPort", "http.nonProxyHosts"};
+
+    private Corpus corpus;
+    private NetworkConditions conditions;
+    private boolean recording;
+    private HttpServer server;
+    private ExecutorService executor;
+    private int requestCount;
+    private int missCount;
+    // The proxy properties in force before useAsProxy, restored by
+    // stopUsingAsProxy.
+    private Map<String, String> previousProxy;
+    private Map<NetworkConditions.Fault, Integer> faultCounts =
+            new EnumMap<NetworkConditions.Fault, Integer>(NetworkConditions.Fault.class);
+
+    /**
+     * Constructs a server for the corpus, which is started with
+     * <code>start</code>.
+     * @param corpus
+     * @param conditions the conditions to serve under
+     */
+    public ReplayServer(Corpus corpus, NetworkConditions conditions) {
+        this.corpus = corpus;
+        this.conditions = conditions;
+    }
+
+    /**
+     * Sets whether requests are forwarded to the real server and recorded,
+     * rather than replayed from the corpus.
+     * @param recording
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Starts serving on a local port.
+     * @param port the port, or 0 for any free port
+     * @throws IOException
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } catch (IOException ex) {
+                    // The client gave up on the response, e.g. timing out.
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // Timed out and slow responses hold a thread each, so don't bound
+        // the number of threads.
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Stops serving, abandoning any responses in progress.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Routes the browser's http requests through this server, by setting the
+     * system proxy properties.
+     */
+    public void useAsProxy() {
+        previousProxy = new HashMap<String, String>();
+        for (String name : PROXY_PROPERTIES)
+            previousProxy.put(name, System.getProperty(name));
+        System.setProperty("http.proxyHost", server.getAddress().getHostString());
+        System.setProperty("http.proxyPort", Integer.toString(getPort()));
+        // Proxy local sites too.
+        System.setProperty("http.nonProxyHosts", "");
+    }
+
+    /**
+     * Puts back the system proxy properties <code>useAsProxy</code> replaced.
+     */
+    public void stopUsingAsProxy() {
+        if (previousProxy == null)
+            return;
+        for (String name : PROXY_PROPERTIES) {
+            String value = previousProxy.get(name);
+            if (value == null)
+                System.clearProperty(name);
+            else
+                System.setProperty(name, value);
+        }
+        previousProxy = null;
+    }
+
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Returns the number of requests that had no recorded response.
+     * @return
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of responses each fault was injected into.
+     * @param fault
+     * @return
+     */
+    public synchronized int getFaultCount(NetworkConditions.Fault fault) {
+        Integer count = faultCounts.get(fault);
+        return count == null ? 0 : count;
+    }
+
+    private synchronized void count(NetworkConditions.Fault fault, boolean miss) {
+        requestCount++;
+        if (miss)
+            missCount++;
+        Integer count = faultCounts.get(fault);
+        faultCounts.put(fault, count == null ? 1 : count+1);
+    }
+
+    // Works out the absolute URL requested. Proxied requests give it in the
+    // request line, direct ones only give the path.
+    private static String getRequestedURL(HttpExchange exchange) {
+        URI uri = exchange.getRequestURI();
+        if (uri.isAbsolute())
+            return uri.toString();
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        return "http://"+host+uri.toString();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String url = getRequestedURL(exchange);
+        Random random = conditions.nextRandom(url);
+        long latency = conditions.chooseLatency(random);
+        NetworkConditions.Fault fault = conditions.chooseFault(random);
+
+        Corpus.Recording recording;
+        if (this.recording)
+            recording = record(url);
+        else
+            recording = corpus.get(url);
+        count(fault, recording == null);
+        if (recording == null)
+            BrowserMonkeyLogger.warning("No recorded response for "+url);
+
+        sleep(latency);
+        if (fault == NetworkConditions.Fault.TIMEOUT) {
+            sleep(conditions.getStallTime());
+            return;
+        }
+        if (recording == null || fault == NetworkConditions.Fault.NOT_FOUND) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        Headers headers = exchange.getResponseHeaders();
+        if (recording.getContentType() != null)
+            headers.set("Content-Type", recording.getContentType());
+        if (recording.getLocation() != null)
+            headers.set("Location", recording.getLocation());
+        // Recordings are replayed as new every time, so the browser's HTTP
+        // cache never revalidates them.
+        headers.set("Cache-Control", "no-cache");
+
+        byte[] body = recording.getBody();
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (isText(recording.getContentType()) && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            body = gzip(body);
+            headers.set("Content-Encoding", "gzip");
+        }
+
+        if (exchange.getRequestMethod().equals("HEAD") || body.length == 0) {
+            exchange.sendResponseHeaders(recording.getStatus(), -1);
+            return;
+        }
+        exchange.sendResponseHeaders(recording.getStatus(), body.length);
+        OutputStream out = exchange.getResponseBody();
+        if (fault == NetworkConditions.Fault.SLOW_DRIP)
+            writePaced(out, body, conditions.getDripSize(), conditions.getDripInterval());
+        else if (conditions.getBandwidth() > 0)
+            writePaced(out, body, THROTTLE_BLOCK_SIZE, THROTTLE_BLOCK_SIZE*1000L/conditions.getBandwidth());
+        else
+            out.write(body);
+        out.close();
+    }
+
+    // Forwards a request to the real server and records the response.
+    private Corpus.Recording record(String url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection(Proxy.NO_PROXY);
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(HttpTransport.getConnectTimeout());
+            connection.setReadTimeout(HttpTransport.getReadTimeout());
+            connection.setRequestProperty("User-agent", "Mozilla/5.0");
+            int status = connection.getResponseCode();
+            InputStream in = connection.getErrorStream();
+            if (in == null)
+                in = connection.getInputStream();
+            byte[] body;
+            try {
+                body = IOUtility.readStream(in, connection.getContentLength(), url);
+            } finally {
+                in.close();
+            }
+
+            Corpus.Recording recording = new Corpus.Recording(status, connection.getContentType(),
+                    connection.getHeaderField("Location"), body);
+            corpus.put(url, recording);
+            BrowserMonkeyLogger.info("Recorded "+status+" response for "+url+" ("+body.length+" bytes).");
+            return recording;
+        } catch (IOException ex) {
+            BrowserMonkeyLogger.warning("Could not record "+url+": "+ex);
+            return null;
+        }
+    }
+
+    // Writes a body a block at a time, pausing between blocks.
+    private static void writePaced(OutputStream out, byte[] body, int blockSize, long interval) throws IOException {
+        for (int offset = 0; offset < body.length; offset += blockSize) {
+            if (offset > 0)
+                sleep(interval);
+            out.write(body, offset, Math.min(blockSize, body.length-offset));
+            out.flush();
+        }
+    }
+
+    // Text is compressed in transit by real servers, images already are.
+    private static boolean isText(String contentType) {
+        return contentType != null && contentType.toLowerCase().startsWith("text/");
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length/2);
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(body);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static void sleep(long milliseconds) throws InterruptedIOException {
+        if (milliseconds <= 0)
+            return;
+        try {
+            Thread.sleep(milliseconds);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Server stopped.");
+        }
+    }
+}
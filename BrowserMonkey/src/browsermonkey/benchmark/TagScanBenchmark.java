@@ -0,0 +1,172 @@
+package browsermonkey.benchmark;
+
+import browsermonkey.document.*;
+import browsermonkey.utility.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compares the hand-written tag scanner used by <code>Token</code> with the
+ * regular expressions it replaced, first checking they agree on every tag,
+ * then timing both. Tags are taken from the given pages, plus randomly
+ * generated ones made from the characters that matter to the scanner.
+ * <pre>
+ * TagScanBenchmark [&lt;file or directory&gt;...] [options]
+ * </pre>
+ * where the options are:
+ * <pre>
+ * -random n          random tags to check (100000)
+ * -seed n            seed for the random tags (0)
+ * -iterations n      timed passes over the tags (10)
+ * -warmup n          untimed passes first (3)
+ * </pre>
+ * @author Paul Calcraft
+ */
+public class TagScanBenchmark {
+    // Characters random tags are made from, weighted towards the ones the
+    // scanner treats specially.
+    private static final String RANDOM_CHARACTERS = "<<>>//==\"\"''  \t\n\r\u000B\f\u0085\u2028\u2029aAbZz09_:-.!?#&;\u00e9\u0130";
+
+    /**
+     * The result of scanning a tag with the regular expressions, as
+     * <code>Token</code> used to.
+     */
+    private static class RegexTag {
+        private String tag;
+        private boolean endTag;
+        private Map<String, String> attributes;
+
+        private RegexTag(String fullTag) {
+            tag = RegexUtility.scan(fullTag, "[\\w:-]+")[0][0].toLowerCase();
+
+            String[][] atts = RegexUtility.scan(fullTag, "<[\\w:-]+\\s+(.*)>");
+            if (atts.length > 0) {
+                String[][] attributeStrings = RegexUtility.scan(atts[0][0], "\\s*([\\w:-]+)\\s*=\\s*(\"[^\"]*\"|'[^']*'|[^\"'>][^\\s>]*)");
+                attributes = new HashMap<String, String>();
+                for (String[] attribute : attributeStrings) {
+                    String value = attribute[1];
+                    if ((value.startsWith("\"") && value.endsWith("\"")) || (value.startsWith("\'") && value.endsWith("\'")))
+                        value = value.substring(1, value.length()-1);
+                    attributes.put(attribute[0].toLowerCase(), value);
+                }
+            }
+
+            int endTagIndex = fullTag.indexOf('/');
+            if (endTagIndex != -1)
+                endTag = endTagIndex < fullTag.toLowerCase().indexOf(tag);
+        }
+    }
+
+    // Describes how a tag is scanned, or the exception scanning it throws.
+    private static String describeRegex(String fullTag) {
+        try {
+            RegexTag result = new RegexTag(fullTag);
+            return result.tag+" "+result.endTag+" "+result.attributes;
+        } catch (RuntimeException ex) {
+            return ex.getClass().getName();
+        }
+    }
+
+    private static String describeScanner(String fullTag) {
+        try {
+            Token result = new Token(fullTag, TokenType.TAG);
+            return result.getTag()+" "+result.isEndTag()+" "+result.getAttributes();
+        } catch (RuntimeException ex) {
+            return ex.getClass().getName();
+        }
+    }
+
+    // Adds the tags in a page, cut out as the tokeniser does, without
+    // tokenising, which gives up on nameless tags.
+    private static void addPageTags(String page, List<String> tags) {
+        int start = page.indexOf('<');
+        while (start != -1) {
+            int end = start+1;
+            while (end < page.length() && page.charAt(end) != '<' && page.charAt(end) != '>')
+                end++;
+            if (end < page.length() && page.charAt(end) == '>')
+                tags.add(page.substring(start, end+1));
+            else
+                tags.add(page.substring(start, end)+">");
+            start = page.indexOf('<', end);
+        }
+    }
+
+    private static String randomTag(Random random) {
+        StringBuilder tag = new StringBuilder("<");
+        // Half have a name and whitespace, to exercise attribute scanning.
+        if (random.nextBoolean())
+            tag.append("a ");
+        int length = random.nextInt(24);
+        for (int i = 0; i < length; i++)
+            tag.append(RANDOM_CHARACTERS.charAt(random.nextInt(RANDOM_CHARACTERS.length())));
+        if (random.nextInt(4) != 0)
+            tag.append('>');
+        return tag.toString();
+    }
+
+    // Times passes over the tags, returning the mean time per tag in
+    // nanoseconds.
+    private static double time(List<String> tags, boolean regex, int warmup, int iterations) {
+        long total = 0;
+        int hash = 0;
+        for (int i = 0; i < warmup+iterations; i++) {
+            long start = System.nanoTime();
+            for (String tag : tags)
+                hash += (regex ? describeRegex(tag) : describeScanner(tag)).length();
+            if (i >= warmup)
+                total += System.nanoTime()-start;
+        }
+        // Use the results so the scanning can't be skipped.
+        if (hash == 42)
+            System.out.print("");
+        return total/(double)iterations/tags.size();
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<File> files = new ArrayList<File>();
+        Map<String, String> options = BenchmarkSupport.parseArguments(args, files);
+        // Conformance errors found while tokenising aren't of interest.
+        java.util.logging.LogManager.getLogManager().reset();
+
+        List<String> pages = new ArrayList<String>();
+        for (File file : files)
+            BenchmarkSupport.addPages(file, pages);
+        List<String> pageTags = new ArrayList<String>();
+        for (String page : pages)
+            addPageTags(page, pageTags);
+        // The tags the parser makes up to fix tables and lists.
+        pageTags.addAll(Arrays.asList("<td>", "<tr>", "<table>", "<ul>", "</title>"));
+
+        List<String> randomTags = new ArrayList<String>();
+        Random random = new Random(BenchmarkSupport.getLong(options, "-seed", 0));
+        long randomCount = BenchmarkSupport.getLong(options, "-random", 100000);
+        for (long i = 0; i < randomCount; i++)
+            randomTags.add(randomTag(random));
+
+        int mismatches = 0;
+        List<String> allTags = new ArrayList<String>(pageTags);
+        allTags.addAll(randomTags);
+        for (String tag : allTags) {
+            String expected = describeRegex(tag);
+            String actual = describeScanner(tag);
+            if (!expected.equals(actual)) {
+                if (mismatches < 10)
+                    System.out.println("Mismatch for "+tag+": regex "+expected+", scanner "+actual);
+                mismatches++;
+            }
+        }
+        System.out.println("Checked "+pageTags.size()+" page tags and "+randomTags.size()+" random tags, "
+                +mismatches+" mismatches");
+
+        int warmup = (int)BenchmarkSupport.getLong(options, "-warmup", 3);
+        int iterations = (int)BenchmarkSupport.getLong(options, "-iterations", 10);
+        List<String> timedTags = pageTags.size() > 5 ? pageTags : randomTags;
+        double regexTime = time(timedTags, true, warmup, iterations);
+        double scannerTime = time(timedTags, false, warmup, iterations);
+        System.out.println(String.format("%d tags: regex %.0f ns/tag, scanner %.0f ns/tag (%.1fx)",
+                timedTags.size(), regexTime, scannerTime, regexTime/scannerTime));
+        if (mismatches != 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,163 @@
+package browsermonkey.benchmark;
+
+import browsermonkey.document.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compares tokenising with and without the tokeniser's structural index,
+ * first checking both give the same tokens for every page, both from a
+ * <code>String</code> and from a <code>Reader</code>, then timing both.
+ * <pre>
+ * TokeniserBenchmark [&lt;file or directory&gt;...] [options]
+ * </pre>
+ * where the options are:
+ * <pre>
+ * -text n            characters of generated text-heavy page to add (0, or
+ *                    4000000 if no pages are given)
+ * -tags n            characters of generated tag-heavy page to add (0, or
+ *                    4000000 if no pages are given)
+ * -iterations n      timed passes over the pages (20)
+ * -warmup n          untimed passes first (5)
+ * </pre>
+ * @author Paul Calcraft
+ */
+public class TokeniserBenchmark {
+    private static final String[] WORDS = {
+        "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog,",
+        "and", "then", "runs", "away.", "Monkeys", "browse", "&amp;", "\"quoted\""
+    };
+
+    // Generates paragraphs of prose with the occasional inline tag.
+    private static String textPage(int length, Random random) {
+        StringBuilder page = new StringBuilder(length+1024);
+        while (page.length() < length) {
+            page.append("<p>");
+            int words = 50+random.nextInt(400);
+            for (int i = 0; i < words; i++) {
+                if (random.nextInt(60) == 0)
+                    page.append("<b>").append(WORDS[random.nextInt(WORDS.length)]).append("</b> ");
+                else
+                    page.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            page.append("</p>\n");
+        }
+        return page.toString();
+    }
+
+    // Generates short cells of a table with attributes, so tokens are short.
+    private static String tagPage(int length, Random random) {
+        StringBuilder page = new StringBuilder(length+1024);
+        page.append("<table border=\"1\">");
+        while (page.length() < length) {
+            page.append("<tr>");
+            for (int i = 0; i < 8; i++)
+                page.append("<td align=\"left\"><a href=\"/").append(random.nextInt(1000)).append("\">")
+                        .append(WORDS[random.nextInt(WORDS.length)]).append("</a></td>");
+            page.append("</tr>\n");
+        }
+        page.append("</table>");
+        return page.toString();
+    }
+
+    private static Tokeniser tokeniser(String page, boolean indexed, boolean reader) {
+        Tokeniser.setStructuralIndexing(indexed);
+        if (reader)
+            return new Tokeniser(new StringReader(page));
+        return new Tokeniser(page);
+    }
+
+    // Describes the tokens of a page, one per line, ending with the
+    // exception tokenising it throws, if any.
+    private static String describe(String page, boolean indexed, boolean reader) {
+        Tokeniser tokeniser = tokeniser(page, indexed, reader);
+        StringBuilder result = new StringBuilder();
+        try {
+            Token token;
+            while ((token = tokeniser.nextToken()) != null)
+                result.append(token.getType()).append(' ').append(token.isEndTag()).append(' ')
+                        .append(token.getFullTag()).append('\n');
+            result.append(tokeniser.isConformant());
+        } catch (RuntimeException ex) {
+            result.append(ex.getClass().getName());
+        }
+        return result.toString();
+    }
+
+    // Tokenises every page once, returning the number of tokens.
+    private static int tokeniseAll(List<String> pages, boolean indexed, boolean reader) {
+        int count = 0;
+        for (String page : pages) {
+            Tokeniser tokeniser = tokeniser(page, indexed, reader);
+            while (tokeniser.nextToken() != null)
+                count++;
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<File> files = new ArrayList<File>();
+        Map<String, String> options = BenchmarkSupport.parseArguments(args, files);
+        // Conformance errors found while tokenising aren't of interest.
+        java.util.logging.LogManager.getLogManager().reset();
+
+        List<String> pages = new ArrayList<String>();
+        for (File file : files)
+            BenchmarkSupport.addPages(file, pages);
+        long generated = files.isEmpty() ? 4000000 : 0;
+        Random random = new Random(0);
+        int textLength = (int)BenchmarkSupport.getLong(options, "-text", generated);
+        if (textLength > 0)
+            pages.add(textPage(textLength, random));
+        int tagLength = (int)BenchmarkSupport.getLong(options, "-tags", generated);
+        if (tagLength > 0)
+            pages.add(tagPage(tagLength, random));
+
+        int mismatches = 0;
+        long characters = 0;
+        List<String> timedPages = new ArrayList<String>();
+        for (String page : pages) {
+            String expected = describe(page, false, false);
+            // Pages with tags the tokeniser gives up on are only checked.
+            if (!expected.endsWith("Exception")) {
+                timedPages.add(page);
+                characters += page.length();
+            }
+            for (int mode = 0; mode < 3; mode++) {
+                boolean indexed = mode != 1;
+                boolean reader = mode != 0;
+                if (!expected.equals(describe(page, indexed, reader))) {
+                    if (mismatches < 10)
+                        System.out.println("Mismatch "+(indexed ? "indexed " : "")+(reader ? "from a Reader " : "")
+                                +"for page starting "+page.substring(0, Math.min(60, page.length())));
+                    mismatches++;
+                }
+            }
+        }
+        System.out.println("Checked "+pages.size()+" pages, "+mismatches+" mismatches");
+
+        int warmup = (int)BenchmarkSupport.getLong(options, "-warmup", 5);
+        int iterations = (int)BenchmarkSupport.getLong(options, "-iterations", 20);
+        for (int mode = 0; mode < 2; mode++) {
+            boolean reader = mode == 1;
+            // Alternate between the two so both see the same conditions, and
+            // take the fastest pass of each.
+            long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+            for (int i = 0; i < warmup+iterations; i++) {
+                for (int indexed = 0; indexed < 2; indexed++) {
+                    long start = System.nanoTime();
+                    tokeniseAll(timedPages, indexed == 1, reader);
+                    long time = System.nanoTime()-start;
+                    if (i >= warmup)
+                        best[indexed] = Math.min(best[indexed], time);
+                }
+            }
+            System.out.println(String.format("%s, %d characters: scalar %.1f ms (%.0f Mchars/s), indexed %.1f ms (%.0f Mchars/s)",
+                    reader ? "From a Reader" : "From a String", characters,
+                    best[0]/1e6, characters*1e3/best[0], best[1]/1e6, characters*1e3/best[1]));
+        }
+        Tokeniser.setStructuralIndexing(false);
+        if (mismatches != 0)
+            System.exit(1);
+    }
+}
@@ -1,6 +1,7 @@
 package browsermonkey.document;
 
-import browsermonkey.utility.IOUtility;
+import browsermonkey.utility.*;
+import java.io.*;
 import java.net.*;
 
 /**
@@ -56,19 +57,35 @@ public class Document {
     */
     public void load() {
         url = IOUtility.getURL(path, context);
-        int[] response = new int[1];
-        byte[] data = IOUtility.readFile(url, response);
+        // Read ahead of any resources still loading for the previous page,
+        // parsing the page as it arrives.
+        DownloadStream download = IOUtility.streamResource(url, FetchPriority.DOCUMENT);
 
-        String pageText;
-        if (data == null) {
-            error = response[0];
-            pageText = "<title>Error retrieving document</title><pre>"+path+"</pre>"+"Error "+error;
+        Parser parser = null;
+        try {
+            if (download.waitForBody()) {
+                // Decode the page incrementally as it's tokenised, straight
+                // from the download. The tokeniser only holds on to the text
+                // it still needs, so however large the page, only its tree
+                // is kept.
+                DecodingReader reader = new DecodingReader(download, download.getContentType());
+                BrowserMonkeyLogger.info("Decoding "+url+" as "+reader.getCharset());
+                parser = new Parser(reader);
+                parser.parse();
+            }
+        } catch (IOException ex) {
+            BrowserMonkeyLogger.warning("Could not read "+url+": "+ex);
+        } finally {
+            download.close();
         }
-        else
-            pageText = new String(data);
 
-        Parser parser = new Parser(pageText);
-        parser.parse();
+        // If the download failed, even part way, show the error instead.
+        Resource resource = download.getResource();
+        if (resource.getError() != 0 || parser == null) {
+            error = resource.getError() != 0 ? resource.getError() : 404;
+            parser = new Parser("<title>Error retrieving document</title><pre>"+path+"</pre>"+"Error "+error);
+            parser.parse();
+        }
         isConformant = parser.isConformant();
         nodeTree = parser.getRootNode();
      }
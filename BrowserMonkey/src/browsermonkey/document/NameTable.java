@@ -0,0 +1,125 @@
+package browsermonkey.document;
+
+import java.util.*;
+
+/**
+ * Assigns each distinct tag name an id, looking names up straight from the
+ * page text so that a name seen before needs no new <code>String</code>.
+ * Names are compared ignoring case and stored lowercase. Each name's id in
+ * the <code>TagSymbolTable</code> is looked up once, when it's added.
+ * <p>
+ * Names are hashed with a multiplier chosen at random for each table, so a
+ * page can't be made of names that all hash alike, as it could with
+ * <code>String.hashCode</code>, to make every lookup search them all.
+ * @author Paul Calcraft
+ */
+class NameTable {
+    private static final Random multipliers = new Random();
+
+    // Odd, so that no character's contribution is lost.
+    private final int multiplier = multipliers.nextInt() | 1;
+    private int[] slots = new int[64];
+    private int[] hashes = new int[64];
+    private List<String> names = new ArrayList<String>();
+    private int[] symbols = new int[16];
+
+    NameTable() {
+        Arrays.fill(slots, -1);
+    }
+
+    /**
+     * Returns the id of the name in a region of text, adding it if it's new.
+     * @param text
+     * @param start the index of the first character of the name
+     * @param end the index after the last character of the name
+     * @return
+     */
+    int lookup(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = multiplier*hash + Character.toLowerCase(text.charAt(i));
+
+        int mask = slots.length-1;
+        int slot = spread(hash) & mask;
+        while (slots[slot] != -1) {
+            if (hashes[slot] == hash && matches(names.get(slots[slot]), text, start, end))
+                return slots[slot];
+            slot = (slot+1) & mask;
+        }
+
+        int id = names.size();
+        String name = text.subSequence(start, end).toString().toLowerCase();
+        names.add(name);
+        if (id == symbols.length)
+            symbols = Arrays.copyOf(symbols, id*2);
+        symbols[id] = TagSymbolTable.lookup(name);
+        slots[slot] = id;
+        hashes[slot] = hash;
+        if (names.size()*2 > slots.length)
+            grow();
+        return id;
+    }
+
+    /**
+     * Returns the lowercase name with an id.
+     * @param id
+     * @return
+     */
+    String getName(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Returns the number of names, one more than the highest id.
+     * @return
+     */
+    int size() {
+        return names.size();
+    }
+
+    /**
+     * Returns the <code>TagSymbolTable</code> id of the name with an id.
+     * @param id
+     * @return the symbol id, or <code>TagSymbolTable.UNKNOWN</code>
+     */
+    int getSymbol(int id) {
+        return symbols[id];
+    }
+
+    private static boolean matches(String name, CharSequence text, int start, int end) {
+        if (name.length() != end-start)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != Character.toLowerCase(text.charAt(start+i)))
+                return false;
+        }
+        return true;
+    }
+
+    // Mixes the high bits of a hash into the low ones that pick its slot.
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        return hash ^ hash >>> 16;
+    }
+
+    private void grow() {
+        int[] oldSlots = slots;
+        int[] oldHashes = hashes;
+        slots = new int[oldSlots.length*2];
+        hashes = new int[oldSlots.length*2];
+        Arrays.fill(slots, -1);
+        int mask = slots.length-1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] == -1)
+                continue;
+            int slot = spread(oldHashes[i]) & mask;
+            while (slots[slot] != -1)
+                slot = (slot+1) & mask;
+            slots[slot] = oldSlots[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package browsermonkey.document;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Tokenises a whole page in two passes, the first in parallel, giving exactly
+ * the tokens, and conformance errors, of tokenising it in order.
+ * <p>
+ * The page is split into chunks, and each chunk is tokenised at the same time
+ * by its own <code>Tokeniser</code>, starting from its first '&lt;'. Each
+ * step it takes is noted, with where in the page the step started. A
+ * tokeniser's steps only depend on where they start, so once tokenising in
+ * order reaches the start of one of a chunk's steps, the chunk's tokens from
+ * there on are the right ones. The second pass stitches the chunks together
+ * in order: it takes on each chunk's tokens from the first of its steps
+ * tokenising in order reaches, tokenising in order itself only until then,
+ * which covers comments, unclosed tags and titles running over the edges of
+ * chunks, and chunks that started somewhere a tag couldn't.
+ * <p>
+ * So that the first pass takes time linear in the length of the page, each
+ * chunk reads no further than the end of the next, leaving any step that
+ * would, such as an unended comment, to tokenising in order.
+ * @author Paul Calcraft
+ */
+final class ParallelTokeniser {
+    // Shared by all pages, with a thread for each processor.
+    private static ForkJoinPool pool;
+
+    private ParallelTokeniser() {
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool();
+        return pool;
+    }
+
+    /**
+     * Tokenises one chunk of the page, noting where each step started.
+     */
+    private static class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CharSequence page;
+        private final int start;
+        private final int end;
+        // How far the chunk's tokeniser may read.
+        private final int limit;
+        private Tokeniser tokeniser;
+        // For each step, where in the page it started, and the number of
+        // tokens and errors found before it.
+        private int[] stepStarts = new int[64];
+        private int[] stepRecords = new int[64];
+        private int[] stepErrors = new int[64];
+        private int stepCount;
+        // Whether the last step threw an exception, in which case it's left
+        // to tokenising in order to throw it again, or needed to read past
+        // the limit, in which case it's left to tokenising in order to redo.
+        private boolean failed;
+
+        Chunk(CharSequence page, int start, int end, int limit) {
+            this.page = page;
+            this.start = start;
+            this.end = end;
+            this.limit = limit;
+        }
+
+        @Override
+        protected void compute() {
+            int pos = start;
+            if (pos != 0) {
+                while (pos < end && page.charAt(pos) != '<')
+                    pos++;
+            }
+            tokeniser = new Tokeniser(page, pos, limit, Math.max(16, (end-start)/32));
+            while (tokeniser.getPosition() < end) {
+                addStep();
+                try {
+                    tokeniser.getNextToken();
+                } catch (RuntimeException ex) {
+                    failed = true;
+                    return;
+                }
+                if (tokeniser.hasPassedLimit()) {
+                    failed = true;
+                    return;
+                }
+            }
+        }
+
+        private void addStep() {
+            if (stepCount == stepStarts.length) {
+                stepStarts = Arrays.copyOf(stepStarts, stepCount*2);
+                stepRecords = Arrays.copyOf(stepRecords, stepCount*2);
+                stepErrors = Arrays.copyOf(stepErrors, stepCount*2);
+            }
+            stepStarts[stepCount] = tokeniser.getPosition();
+            stepRecords[stepCount] = tokeniser.getTokenRecordCount();
+            stepErrors[stepCount] = tokeniser.getDeferredErrors().size();
+            stepCount++;
+        }
+
+        // Gives the page's tokeniser this chunk's tokens from the step
+        // starting where it has reached, returning false if no step does.
+        boolean adoptInto(Tokeniser target) {
+            int step = Arrays.binarySearch(stepStarts, 0, stepCount, target.getPosition());
+            if (step < 0)
+                return false;
+            if (failed) {
+                // Stop before the step that failed.
+                int last = stepCount-1;
+                target.adopt(tokeniser, stepRecords[step], stepRecords[last],
+                        stepErrors[step], stepErrors[last], stepStarts[last]);
+            } else {
+                target.adopt(tokeniser, stepRecords[step], tokeniser.getTokenRecordCount(),
+                        stepErrors[step], tokeniser.getDeferredErrors().size(), tokeniser.getPosition());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Tokenises a whole page in parallel, giving a tokeniser the tokens. The
+     * tokeniser must be at the start of the page, and is left at the end,
+     * unless tokenising throws an exception, which is thrown here.
+     * @param target the tokeniser of the page
+     * @param page
+     * @param chunkSize the length of each chunk
+     */
+    static void tokenise(Tokeniser target, CharSequence page, int chunkSize) {
+        ForkJoinPool pool = getPool();
+        int length = page.length();
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (int start = 0; start < length; start += chunkSize) {
+            Chunk chunk = new Chunk(page, start, (int)Math.min((long)start+chunkSize, length),
+                    (int)Math.min((long)start+2L*chunkSize, length));
+            pool.execute(chunk);
+            chunks.add(chunk);
+        }
+
+        try {
+            for (Chunk chunk : chunks) {
+                chunk.join();
+                // Tokenise in order until reaching one of the chunk's steps,
+                // unless it's been passed already.
+                while (target.getPosition() < chunk.end && !chunk.adoptInto(target))
+                    target.getNextToken();
+            }
+        } finally {
+            // Don't leave chunks running if tokenising failed.
+            for (Chunk chunk : chunks)
+                chunk.cancel(false);
+        }
+    }
+}
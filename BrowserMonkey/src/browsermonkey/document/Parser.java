@@ -2,10 +2,11 @@ package browsermonkey.document;
 
 import browsermonkey.utility.BrowserMonkeyLogger;
 
+import java.io.Reader;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  *
@@ -16,21 +17,27 @@ import java.util.Set;
  */
 public class Parser {
 
-    private Set<String> ignoredTags;
-    private Set<String> headTags;
-    private Set<String> structureTags; // Tags that can't contain text nodes.
-    private Set<String> tableTags;
-    private Set<String> nestableTags;
-    private Set<String> singularlyNestableTags;
-    private Set<String> leafTags;
-    private Set<String> listTags;
     private TagDocumentNode rootNode;
     private TagDocumentNode headNode;
     private ArrayList<TagDocumentNode> openElements;
-    private String originalPage;
-    private Iterator<Token> tokens;
+    // The number of open elements of each type, by id, and by name for types
+    // without one, so that end tags of elements that aren't open don't need
+    // a search of the whole stack, keeping parsing linear in time.
+    private int[] openCounts;
+    private Map<String, Integer> unknownOpenCounts;
+    // The TagCategories of the innermost open element, and the number of
+    // open elements that keep whitespace.
+    private int currentCategories;
+    private int preformattedCount;
+    private Tokeniser tokeniser;
     private boolean conformant = true;
 
+    // Load the TagCategories before any tokens are made, so that tags they
+    // register have ids.
+    static {
+        TagCategories.of(TagSymbolTable.UNKNOWN);
+    }
+
     /**
      * Logs a new conformance error and ensures that this marks the file
      * non conforming
@@ -48,16 +55,104 @@ public class Parser {
      *
      */
     public boolean isConformant() {
-        return conformant;
+        return conformant && tokeniser.isConformant();
+    }
+
+    /**
+     * Checks if the innermost open element is in a category.
+     * @param category a TagCategories bit
+     * @return
+     */
+    private boolean currentIs(int category) {
+        return (currentCategories & category) != 0;
+    }
+
+    /**
+     * Checks if a node is a tag of a type. Types are compared by id, unless
+     * either isn't registered, when they can only be compared by name.
+     * @param node
+     * @param id the id of the type
+     * @param type the name of the type
+     * @return
+     */
+    private static boolean isType(TagDocumentNode node, int id, String type) {
+        if (node.getTypeId() != TagSymbolTable.UNKNOWN && id != TagSymbolTable.UNKNOWN) {
+            return node.getTypeId() == id;
+        }
+        return node.getType().equals(type);
+    }
+
+    /**
+     *
+     * @return the id of the type of the innermost open element
+     */
+    private int currentTypeId() {
+        return openElements.get(openElements.size() - 1).getTypeId();
     }
 
     private boolean whitespaceIsPreformatted() {
-        for (TagDocumentNode tag : openElements) {
-            if (tag.getType().equals("pre")) {
-                return true;
+        return preformattedCount > 0;
+    }
+
+    /**
+     * Checks if any open element could be of a type, compared as
+     * <code>isType</code> compares them.
+     * @param id the id of the type
+     * @param type the name of the type
+     * @return
+     */
+    private boolean mightBeOpen(int id, String type) {
+        if (!unknownOpenCounts.isEmpty() && unknownOpenCounts.containsKey(type)) {
+            return true;
+        }
+        if (id == TagSymbolTable.UNKNOWN) {
+            // Registered since the token was made.
+            id = TagSymbolTable.lookup(type);
+        }
+        return id != TagSymbolTable.UNKNOWN && id < openCounts.length && openCounts[id] > 0;
+    }
+
+    /**
+     * Adds an element to the top of the open element stack.
+     * @param node
+     */
+    private void push(TagDocumentNode node) {
+        openElements.add(node);
+        count(node, 1);
+        currentCategories = TagCategories.of(node.getTypeId());
+    }
+
+    /**
+     * Removes the open elements from an index in the stack upwards.
+     * @param index
+     */
+    private void truncate(int index) {
+        for (int i = openElements.size() - 1; i >= index; i--) {
+            count(openElements.get(i), -1);
+        }
+        openElements.subList(index, openElements.size()).clear();
+        currentCategories = openElements.isEmpty() ? 0 : TagCategories.of(currentTypeId());
+    }
+
+    private void count(TagDocumentNode node, int change) {
+        int id = node.getTypeId();
+        if ((TagCategories.of(id) & TagCategories.PREFORMATTED) != 0) {
+            preformattedCount += change;
+        }
+        if (id == TagSymbolTable.UNKNOWN) {
+            Integer count = unknownOpenCounts.get(node.getType());
+            int newCount = (count == null ? 0 : count) + change;
+            if (newCount == 0) {
+                unknownOpenCounts.remove(node.getType());
+            } else {
+                unknownOpenCounts.put(node.getType(), newCount);
             }
+            return;
+        }
+        if (id >= openCounts.length) {
+            openCounts = Arrays.copyOf(openCounts, Math.max(id + 1, openCounts.length * 2));
         }
-        return false;
+        openCounts[id] += change;
     }
 
     /**
@@ -71,56 +166,30 @@ public class Parser {
 
     /**
      * Constructor for Parser class. Sets up the supplied page as the target to
-     * be parsed. Sets up all the tag arrays so the parser knows how to treat
-     * certain tags. Also creates a <code>Tokeniser</code> and tokenises the
-     * information in the supplied page so the parser can do its work.
-     * @param page Page supplied to be parsed in the form of a string
+     * be parsed. How certain tags are treated is given by their
+     * <code>TagCategories</code>. Also creates a <code>Tokeniser</code> for
+     * the supplied page, which tokenises it as the parser does its work.
+     * @param page Page supplied to be parsed, e.g. a <code>String</code> or a
+     * decoded <code>CharBuffer</code>
      */
-    public Parser(String page) {
-        /*@single_nestable_tags = ['html','head','body'] #tags that can only be used once
-        @table_tags = ['table','tr','td',] #table tags need a special case
-        @nestable_tags = ['b','i','strong','em','pre'] #normal, nestable, tags
-        @singuarly_nestable_tags = ['p'] #these tags cannot be nested inside themselfs
-        @leaf_tags =['br','img'] #can have no children
-        @listed_tags =['li','ol','ul'] #list ele*/
-        ignoredTags = new HashSet<String>();
-        ignoredTags.add("html");
-        ignoredTags.add("body");
-        ignoredTags.add("head");
-        headTags = new HashSet<String>();
-        headTags.add("title");
-
-        structureTags = new HashSet<String>();
-        structureTags.add("table");
-        structureTags.add("tr");
-        structureTags.add("td");
-
-        this.tableTags = new HashSet<String>();
-        tableTags.add("table");
-        tableTags.add("tr");
-        tableTags.add("td");
-        this.nestableTags = new HashSet<String>();
-        nestableTags.add("b");
-        nestableTags.add("i");
-        nestableTags.add("strong");
-        nestableTags.add("em");
-        nestableTags.add("pre");
-        this.singularlyNestableTags = new HashSet<String>();
-        singularlyNestableTags.add("p");
-        this.leafTags = new HashSet<String>();
-        leafTags.add("br");
-        leafTags.add("img");
-        leafTags.add("hr");
-        this.listTags = new HashSet<String>();
-        listTags.add("li");
-        listTags.add("ol");
-        listTags.add("ul");
-
-        originalPage = page;
-        Tokeniser tokeniser = new Tokeniser(page);
-        tokeniser.tokenise();
-        tokens = tokeniser.getTokens();
-        conformant = tokeniser.isConformant();
+    public Parser(CharSequence page) {
+        this(new Tokeniser(page));
+    }
+
+    /**
+     * Constructor for Parser class, reading the page to be parsed from a
+     * <code>Reader</code>, such as a <code>DecodingReader</code> over the
+     * page's bytes. The page is read as it's parsed, so it can be parsed
+     * while it's still downloading.
+     * @param page Reader for the page to be parsed
+     */
+    public Parser(Reader page) {
+        this(new Tokeniser(page));
+    }
+
+    // Parses the tokens from the given tokeniser.
+    private Parser(Tokeniser tokeniser) {
+        this.tokeniser = tokeniser;
     }
 
     /**
@@ -131,61 +200,66 @@ public class Parser {
      */
     public void parse() {
         openElements = new ArrayList<TagDocumentNode>();
+        openCounts = new int[TagSymbolTable.size()];
+        unknownOpenCounts = new HashMap<String, Integer>();
+        preformattedCount = 0;
 
-        rootNode = new TagDocumentNode("html", null);
-        openElements.add(rootNode);
+        rootNode = new TagDocumentNode("html", TagSymbolTable.HTML, null);
+        push(rootNode);
 
-        while (tokens.hasNext()) {
-            Token currentToken = tokens.next();
+        Token currentToken;
+        while ((currentToken = tokeniser.nextToken()) != null) {
 
             if (currentToken.getType() == TokenType.TAG) {
-                if (currentToken.getTag().equals("th")) {
+                if (currentToken.getTagId() == TagSymbolTable.TH) {
                     currentToken.setTag("td");
                 }
+                int categories = TagCategories.of(currentToken.getTagId());
 
-                if (ignoredTags.contains(currentToken.getTag())) {
+                if ((categories & TagCategories.IGNORED) != 0) {
                     continue;
                 }
 
                 if (currentToken.isStartTag()) {
-                    if (headTags.contains(currentToken.getTag())) {
+                    if ((categories & TagCategories.HEAD) != 0) {
                         if (headNode == null) {
-                            headNode = new TagDocumentNode("head", null);
+                            headNode = new TagDocumentNode("head", TagSymbolTable.HEAD, null);
                             rootNode.children.add(0, headNode);
                         }
 
-                        TagDocumentNode headChildNode = new TagDocumentNode(currentToken.getTag(), currentToken.getAttributes());
+                        TagDocumentNode headChildNode = new TagDocumentNode(currentToken.getTag(), currentToken.getTagId(),
+                                currentToken.getAttributes());
                         headNode.addChild(headChildNode);
-                        openElements.add(headChildNode);
+                        push(headChildNode);
                         continue;
                     }
                     //if it's  table tag or if a row has been opened but not a cell - add the approprate elements
-                    if (tableTags.contains(currentToken.getTag())) {
+                    if ((categories & TagCategories.TABLE) != 0) {
                         doTableElement(currentToken);
                         continue;
                     } else if (openElements.size() >= 1) {
-                        if (openElements.get(openElements.size() - 1).getType().equals("tr") || openElements.get(openElements.size() - 1).getType().equals("table")) {
+                        if (currentIs(TagCategories.NEEDS_CELL)) {
                             conformanceError("Table Error: correcting with new <td> tag.");
                             doTableElement(new Token("<td>", TokenType.TAG));
                         }
                     }
 
                     //perform listed tag functions
-                    if (listTags.contains(currentToken.getTag())) {
+                    if ((categories & TagCategories.LIST) != 0) {
                         doListedElement(currentToken);
                     } //For singularly nestable tags, check if the last tag is the same. If it is
                     //fix the nesting, if not - carry on.
-                    else if (singularlyNestableTags.contains(currentToken.getTag())) {
-                        if (openElements.size() > 1 && openElements.get(openElements.size() - 1).getType().equals(currentToken.getTag())) {
+                    else if ((categories & TagCategories.SINGULARLY_NESTABLE) != 0) {
+                        if (openElements.size() > 1 && currentTypeId() == currentToken.getTagId()) {
                             conformanceError("Tag Nesting Error: closing " + currentToken.getTag() + ".");
                             doEndToken(currentToken);
                         }
                         doStartToken(currentToken);
                     } //basic nestable tag
-                    else if (nestableTags.contains(currentToken.getTag())) {
+                    else if ((categories & TagCategories.NESTABLE) != 0) {
                         doStartToken(currentToken);
                     } //add the leaf tag
-                    else if (leafTags.contains(currentToken.getTag())) {
+                    else if ((categories & TagCategories.LEAF) != 0) {
                         doLeafElement(currentToken);
                     } else {
                         // if in doubt...
@@ -197,22 +271,20 @@ public class Parser {
                 }
             } else {
                 String text = currentToken.getTag();
+                boolean preformatted = whitespaceIsPreformatted();
 
-                if (whitespaceIsPreformatted()) {
-                    // Non breaking space.
-                    text = text.replaceAll(" ", "\u00A0");
-                } else {
-                    // Regular whitespace handling: collapse all contiguous
-                    // whitespace to a single space.
-                    text = text.replaceAll("\\s+", " ");
-                    // Ignore empty text node.
-                    if (structureTags.contains(openElements.get(openElements.size() - 1).getType()) && text.equals(" ")) {
-                        continue;
-                    }
+                // Ignore empty text node, which is whitespace that would
+                // collapse to a single space.
+                if (!preformatted && currentIs(TagCategories.STRUCTURE) && TextNormaliser.isWhitespace(text)) {
+                    continue;
                 }
+                // Collapse all contiguous whitespace to a single space, or
+                // keep it as non breaking spaces, and decode entities, so the
+                // text node holds the text to display.
+                text = TextNormaliser.normalise(text, preformatted);
                 //add a text element - but not without checking the state of the tables.
                 if (openElements.size() >= 1) {
-                    if (openElements.get(openElements.size() - 1).getType().equals("tr") || openElements.get(openElements.size() - 1).getType().equals("table")) {
+                    if (currentIs(TagCategories.NEEDS_CELL)) {
                         this.doTableElement(new Token("<td>", TokenType.TAG));
                     }
                 }
@@ -228,11 +300,11 @@ public class Parser {
      *
      */
     private void doListedElement(Token token) {
-        if (token.getTag().equals("li")) {
+        if (token.getTagId() == TagSymbolTable.LI) {
             if (openElements.size() >= 1) {
-                if (openElements.get(openElements.size() - 1).getType().equals("ol") || openElements.get(openElements.size() - 1).getType().equals("ul")) {
+                if (currentIs(TagCategories.LIST_CONTAINER)) {
                     doStartToken(token);
-                } else if (openElements.get(openElements.size() - 1).getType().equals("li")) {
+                } else if (currentTypeId() == TagSymbolTable.LI) {
                     conformanceError("List Error: shorthand list notation - closing <li>.");
                     doEndToken(openElements.get(openElements.size() - 1));
                     doStartToken(token);
@@ -247,7 +319,8 @@ public class Parser {
                 doListedElement(new Token("<ul>", TokenType.TAG));
                 doStartToken(token);
             }
-        } else if (token.getTag().equals("ol") || token.getTag().equals("ul")) {
+        } else {
+            // ol, ul, and any other tags categorised as list tags.
             doStartToken(token);
         }
     }
@@ -258,10 +331,10 @@ public class Parser {
      *
      */
     public void doTableElement(Token token) {
-        if (token.getTag().equals("td")) {
+        if (token.getTagId() == TagSymbolTable.TD) {
             //checks to ensure that each td has a tr parent, if not it adds a tr to the tree and then appends the td to that.
             if (openElements.size() >= 1) {
-                if (openElements.get(openElements.size() - 1).getType().equals("tr")) {
+                if (currentTypeId() == TagSymbolTable.TR) {
                     doStartToken(token);
                 } else {
                     conformanceError("Table Error: correcting with new <tr> tag.");
@@ -274,10 +347,10 @@ public class Parser {
                 doStartToken(token);
 
             }
-        } else if (token.getTag().equals("tr")) {
+        } else if (token.getTagId() == TagSymbolTable.TR) {
             //checks to ensure that each tr has a table parent, if not it adds a table to the tree and then appends the tr to that.
             if (openElements.size() >= 1) {
-                if (openElements.get(openElements.size() - 1).getType().equals("table")) {
+                if (currentTypeId() == TagSymbolTable.TABLE) {
                     doStartToken(token);
                 } else {
                     conformanceError("Table Error: correcting with new <table> tag.");
@@ -289,7 +362,8 @@ public class Parser {
                 doTableElement(new Token("<table>", TokenType.TAG));
                 doStartToken(token);
             }
-        } else if (token.getTag().equals("table")) {
+        } else {
+            // table, and any other tags categorised as table tags.
             doStartToken(token);
         }
     }
@@ -300,7 +374,7 @@ public class Parser {
      *
      */
     private void doLeafElement(Token token) {
-        TagDocumentNode tagNode = new TagDocumentNode(token.getTag(), token.getAttributes());
+        TagDocumentNode tagNode = new TagDocumentNode(token.getTag(), token.getTagId(), token.getAttributes());
         openElements.get(openElements.size() - 1).addChild(tagNode);
     }
 
@@ -321,19 +395,7 @@ public class Parser {
      */
     private void fixNestingError(Token token) {
         conformanceError("Nesting Error: on tag " + token.getTag() + ".");
-        int errorIndex = -1;
-        for (int i = openElements.size() - 1; i >= 0; i--) {
-            if (openElements.get(i).getType().equals(token.getTag())) {
-                errorIndex = i;
-                break;
-            }
-        }
-        if (errorIndex != -1) {
-            for (int i = openElements.size() - 1; i >= errorIndex; i--) {
-                openElements.remove(openElements.get(i));
-            }
-        }
-
+        fixNestingError(token.getTagId(), token.getTag());
     }
 
     /**
@@ -343,25 +405,26 @@ public class Parser {
      */
     private void fixNestingError(TagDocumentNode tagDocNode) {
         conformanceError("Nesting Error: on tag " + tagDocNode.getType() + ".");
-        int errorIndex = -1;
+        fixNestingError(tagDocNode.getTypeId(), tagDocNode.getType());
+    }
 
-        for (int i = openElements.size() - 1; i >= 0; i--) {
-            if (openElements.get(i).getType().equals(tagDocNode.getType())) {
-                errorIndex = i;
-                break;
-            }
+    /**
+     * Removes the innermost open element of a type, and all those inside it,
+     * if there is one. The elements searched past are all removed, so
+     * fixing errors takes no more time in all than opening the elements did.
+     * @param id the id of the type
+     * @param type the name of the type
+     */
+    private void fixNestingError(int id, String type) {
+        if (!mightBeOpen(id, type)) {
+            return;
         }
-
-        if (errorIndex != -1) {
-
-            for (int i = openElements.size() - 1; i >= errorIndex; i--) {
-
-                openElements.remove(openElements.get(i));
+        for (int i = openElements.size() - 1; i >= 0; i--) {
+            if (isType(openElements.get(i), id, type)) {
+                truncate(i);
+                return;
             }
         }
-
-
-
     }
 
     /**
@@ -370,8 +433,8 @@ public class Parser {
      *
      */
     private void doEndToken(Token token) {
-        if (token.getTag().equals(openElements.get(openElements.size() - 1).getType())) {
-            openElements.remove(openElements.size() - 1);
+        if (isType(openElements.get(openElements.size() - 1), token.getTagId(), token.getTag())) {
+            truncate(openElements.size() - 1);
         } else {
             fixNestingError(token);
         }
@@ -383,8 +446,8 @@ public class Parser {
      *
      */
     private void doEndToken(TagDocumentNode tagDocNode) {
-        if (tagDocNode.getType().equals(openElements.get(openElements.size() - 1).getType())) {
-            openElements.remove(openElements.size() - 1);
+        if (isType(openElements.get(openElements.size() - 1), tagDocNode.getTypeId(), tagDocNode.getType())) {
+            truncate(openElements.size() - 1);
         } else {
             fixNestingError(tagDocNode);
         }
@@ -396,10 +459,10 @@ public class Parser {
      *
      */
     private void doStartToken(Token token) {
-        TagDocumentNode newNode = new TagDocumentNode(token.getTag(), token.getAttributes());
+        TagDocumentNode newNode = new TagDocumentNode(token.getTag(), token.getTagId(), token.getAttributes());
 
         openElements.get(openElements.size() - 1).addChild(newNode);
-        openElements.add(newNode);
+        push(newNode);
         if (openElements.size() == 1) {
             rootNode = openElements.get(0);
         }
@@ -0,0 +1,123 @@
+package browsermonkey.document;
+
+/**
+ * Indexes where the '&lt;' and '&gt;' characters are in a block of up to 64
+ * characters of a page, as a bit for each character, so the tokeniser can find
+ * the end of a run of text or of a tag with a couple of bit operations per
+ * block rather than a few per character. Building a mask is a tight loop
+ * over the block with nothing else to check, so it's much faster than
+ * searching a character at a time through the tokeniser.
+ * @author Paul Calcraft
+ */
+final class StructuralIndex {
+    /**
+     * The most characters indexed at once, one for each bit of a long.
+     */
+    static final int BLOCK_SIZE = 64;
+
+    // The block indexed, by position in the page.
+    private int blockStart;
+    private int blockEnd;
+    // A bit for each '<' and each '>' in the block, the lowest bit for the
+    // first character.
+    private long opens;
+    private long closes;
+    // The masks are only built once they're needed, as text only needs the
+    // '<' mask.
+    private boolean opensIndexed;
+    private boolean closesIndexed;
+    private char[] chars;
+    private int offset;
+    // Holds characters copied from pages that aren't arrays.
+    private char[] copy = new char[BLOCK_SIZE];
+
+    /**
+     * Returns true if a position is in the block indexed.
+     * @param pos
+     * @return
+     */
+    boolean covers(int pos) {
+        return pos >= blockStart && pos < blockEnd;
+    }
+
+    /**
+     * Returns the position after the last character indexed.
+     * @return
+     */
+    int getBlockEnd() {
+        return blockEnd;
+    }
+
+    /**
+     * Indexes characters held in an array. The array is read from as the
+     * masks are needed, so it must not change until another block is
+     * indexed.
+     * @param chars
+     * @param offset the index in the array of the first character
+     * @param pos the position of the first character in the page
+     * @param length the number of characters, at most <code>BLOCK_SIZE</code>
+     */
+    void index(char[] chars, int offset, int pos, int length) {
+        this.chars = chars;
+        this.offset = offset;
+        blockStart = pos;
+        blockEnd = pos+length;
+        opensIndexed = false;
+        closesIndexed = false;
+    }
+
+    // Builds the mask of a character in the block.
+    private long mask(char target) {
+        long mask = 0;
+        int length = blockEnd-blockStart;
+        for (int i = 0; i < length; i++) {
+            if (chars[offset+i] == target)
+                mask |= 1L << i;
+        }
+        return mask;
+    }
+
+    /**
+     * Indexes characters of some text.
+     * @param text
+     * @param offset the index in the text of the first character
+     * @param pos the position of the first character in the page
+     * @param length the number of characters, at most <code>BLOCK_SIZE</code>
+     */
+    void index(CharSequence text, int offset, int pos, int length) {
+        if (text instanceof String) {
+            ((String)text).getChars(offset, offset+length, copy, 0);
+        } else {
+            for (int i = 0; i < length; i++)
+                copy[i] = text.charAt(offset+i);
+        }
+        index(copy, 0, pos, length);
+    }
+
+    /**
+     * Finds the first '&lt;', or with <code>tagEnd</code> the first '&lt;'
+     * or '&gt;', at or after a position in the block.
+     * @param pos a position covered by the block
+     * @param tagEnd
+     * @return the position of the character, or -1 if there isn't one in the
+     * rest of the block
+     */
+    int find(int pos, boolean tagEnd) {
+        if (!opensIndexed) {
+            opens = mask('<');
+            opensIndexed = true;
+        }
+        long mask = opens;
+        if (tagEnd) {
+            if (!closesIndexed) {
+                closes = mask('>');
+                closesIndexed = true;
+            }
+            mask |= closes;
+        }
+        mask &= -1L << (pos - blockStart);
+        if (mask == 0)
+            return -1;
+        return blockStart + Long.numberOfTrailingZeros(mask);
+    }
+}
@@ -0,0 +1,139 @@
+package browsermonkey.document;
+
+import browsermonkey.utility.BrowserMonkeyLogger;
+import java.io.*;
+import java.util.*;
+
+/**
+ * The categories of tags the parser treats alike, as a mask of bits for each
+ * tag id, so the parser makes its decisions with bit tests. The categories of
+ * the tags HTML itself gives meaning to are built in, and entries in the
+ * tagCategories.properties resource, then in a tagCategories.properties file
+ * in the working directory if there is one, add to them or replace them for
+ * the same tags, so tags can be categorised without changing the code. Each
+ * entry is a tag name and the categories it's in, separated by commas, e.g.
+ * <pre>
+ * tr = structure, table, needsCell
+ * </pre>
+ * Tag names that aren't registered in the <code>TagSymbolTable</code> are
+ * registered when the masks are loaded.
+ * @author Paul Calcraft
+ */
+final class TagCategories {
+    static final int IGNORED = 1;
+    static final int HEAD = 1 << 1;
+    static final int STRUCTURE = 1 << 2;
+    static final int TABLE = 1 << 3;
+    static final int NEEDS_CELL = 1 << 4;
+    static final int NESTABLE = 1 << 5;
+    static final int SINGULARLY_NESTABLE = 1 << 6;
+    static final int LEAF = 1 << 7;
+    static final int LIST = 1 << 8;
+    static final int LIST_CONTAINER = 1 << 9;
+    static final int PREFORMATTED = 1 << 10;
+
+    // The names of the categories in the properties, in bit order.
+    private static final String[] NAMES = {
+        "ignored", "head", "structure", "table", "needsCell", "nestable",
+        "singularlyNestable", "leaf", "list", "listContainer", "preformatted"
+    };
+
+    // The built in categories, in the form of the properties.
+    private static final String[] DEFAULTS = {
+        "html = ignored",
+        "head = ignored",
+        "body = ignored",
+        "title = head",
+        "table = structure, table, needsCell",
+        "tr = structure, table, needsCell",
+        "td = structure, table",
+        "b = nestable",
+        "i = nestable",
+        "strong = nestable",
+        "em = nestable",
+        "pre = nestable, preformatted",
+        "p = singularlyNestable",
+        "br = leaf",
+        "img = leaf",
+        "hr = leaf",
+        "li = list",
+        "ol = list, listContainer",
+        "ul = list, listContainer"
+    };
+
+    private static final String FILE_NAME = "tagCategories.properties";
+
+    // The mask of each tag, by id. Tags registered after loading are in no
+    // categories.
+    private static final int[] masks = load();
+
+    private TagCategories() {
+    }
+
+    /**
+     * Returns the categories a tag is in.
+     * @param id the id of the tag
+     * @return the mask of category bits, 0 for tags without an id
+     */
+    static int of(int id) {
+        if (id < 0 || id >= masks.length)
+            return 0;
+        return masks[id];
+    }
+
+    private static int[] load() {
+        Properties defaults = new Properties();
+        for (String entry : DEFAULTS) {
+            int equals = entry.indexOf('=');
+            defaults.setProperty(entry.substring(0, equals).trim(), entry.substring(equals+1));
+        }
+        Properties categories = new Properties(defaults);
+        try {
+            // Neither file has to be there, the built in categories are enough.
+            InputStream in = TagCategories.class.getResourceAsStream("/resources/"+FILE_NAME);
+            if (in != null) {
+                try {
+                    categories.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+            File file = new File(FILE_NAME);
+            if (file.exists()) {
+                in = new FileInputStream(file);
+                try {
+                    categories.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException ex) {
+            BrowserMonkeyLogger.warning("Could not read "+FILE_NAME+": "+ex);
+        }
+
+        Map<Integer, Integer> tagMasks = new HashMap<Integer, Integer>();
+        for (String name : categories.stringPropertyNames()) {
+            int id = TagSymbolTable.register(name.trim().toLowerCase());
+            tagMasks.put(id, parseMask(name, categories.getProperty(name)));
+        }
+        int[] result = new int[TagSymbolTable.size()];
+        for (Map.Entry<Integer, Integer> entry : tagMasks.entrySet())
+            result[entry.getKey()] = entry.getValue();
+        return result;
+    }
+
+    private static int parseMask(String tag, String value) {
+        int mask = 0;
+        for (String category : value.split(",")) {
+            category = category.trim();
+            if (category.length() == 0)
+                continue;
+            int bit = Arrays.asList(NAMES).indexOf(category);
+            if (bit == -1)
+                BrowserMonkeyLogger.warning("Unknown category of tag "+tag+" in "+FILE_NAME+": "+category);
+            else
+                mask |= 1 << bit;
+        }
+        return mask;
+    }
+}
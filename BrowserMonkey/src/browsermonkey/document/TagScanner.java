@@ -0,0 +1,248 @@
+package browsermonkey.document;
+
+import java.util.*;
+
+/**
+ * Scans tag names and attributes out of the text of a tag in a single pass,
+ * without regular expressions. The results are exactly those of the regular
+ * expressions tags used to be scanned with, quirks included, which are noted
+ * where they matter:
+ * <pre>
+ * name:       [\w:-]+
+ * attributes: &lt;[\w:-]+\s+(.*)&gt;
+ * attribute:  \s*([\w:-]+)\s*=\s*("[^"]*"|'[^']*'|[^"'&gt;][^\s&gt;]*)
+ * </pre>
+ * @author Paul Calcraft
+ */
+final class TagScanner {
+    private TagScanner() {
+    }
+
+    /**
+     * Returns true for the characters of tag and attribute names: ASCII
+     * letters and digits, underscores, colons and hyphens.
+     * @param c
+     * @return
+     */
+    static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '_' || c == ':' || c == '-';
+    }
+
+    /**
+     * Returns true for the whitespace characters of regular expressions,
+     * which are ASCII only.
+     * @param c
+     * @return
+     */
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    // The characters . doesn't match.
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Returns the first name in the text of a tag, in lowercase.
+     * @param fullTag
+     * @return the name, or null if there is none
+     */
+    static String scanName(String fullTag) {
+        int start = 0;
+        while (start < fullTag.length() && !isNameChar(fullTag.charAt(start)))
+            start++;
+        if (start == fullTag.length())
+            return null;
+        return fullTag.substring(start, nameEnd(fullTag, start)).toLowerCase();
+    }
+
+    /**
+     * Extracts the attributes from the text of a tag, with lowercase names
+     * and values without their quotes.
+     * @param fullTag
+     * @return the attributes, or null if the tag has no attribute section:
+     * whitespace after the name, ended by a &gt; on the same line
+     */
+    static Map<String, String> scanAttributes(String fullTag) {
+        String section = findAttributeSection(fullTag);
+        if (section == null)
+            return null;
+
+        Map<String, String> attributes = new HashMap<String, String>();
+        AttributeMatcher matcher = new AttributeMatcher(section);
+        // Attributes were scanned for until a search ran into the end of the
+        // section, so any after a search that did are ignored.
+        while (!matcher.hitEnd && matcher.find()) {
+            String value = matcher.value;
+            if ((value.startsWith("\"") && value.endsWith("\"")) || (value.startsWith("\'") && value.endsWith("\'")))
+                value = value.substring(1, value.length()-1);
+            attributes.put(matcher.name.toLowerCase(), value);
+        }
+        return attributes;
+    }
+
+    // Returns the text after the first <name followed by whitespace, up to
+    // the last > on that line, or null if there's no such text.
+    private static String findAttributeSection(String fullTag) {
+        // Where the last line searched for a > without one ends, so that
+        // sections starting before it aren't searched again.
+        int lineEnd = -1;
+        for (int i = fullTag.indexOf('<'); i != -1; i = fullTag.indexOf('<', i + 1)) {
+            int nameEnd = nameEnd(fullTag, i + 1);
+            if (nameEnd == i + 1)
+                continue;
+            int start = whitespaceEnd(fullTag, nameEnd);
+            if (start == nameEnd || start < lineEnd)
+                continue;
+            int end = start;
+            int lastClose = -1;
+            while (end < fullTag.length() && !isLineTerminator(fullTag.charAt(end))) {
+                if (fullTag.charAt(end) == '>')
+                    lastClose = end;
+                end++;
+            }
+            if (lastClose != -1)
+                return fullTag.substring(start, lastClose);
+            lineEnd = end;
+        }
+        return null;
+    }
+
+    private static int nameEnd(CharSequence text, int i) {
+        while (i < text.length() && isNameChar(text.charAt(i)))
+            i++;
+        return i;
+    }
+
+    private static int whitespaceEnd(CharSequence text, int i) {
+        while (i < text.length() && isWhitespace(text.charAt(i)))
+            i++;
+        return i;
+    }
+
+    /**
+     * Finds name=value attributes in turn, as the attribute regular
+     * expression would, including whether each search ran into the end of the
+     * text, which a search that finds nothing always does.
+     */
+    private static class AttributeMatcher {
+        private String text;
+        private int position;
+        private boolean hitEnd;
+        private String name;
+        private String value;
+        // After a failed match, the next start position that could match.
+        private int retry;
+
+        AttributeMatcher(String text) {
+            this.text = text;
+        }
+
+        // Finds the next attribute, trying each start position in turn,
+        // except those a failed match shows would fail the same way, so that
+        // a search takes time linear in the length of the text.
+        boolean find() {
+            hitEnd = false;
+            // Every attribute is at least three characters long.
+            for (int start = position; start <= text.length() - 3; start = retry) {
+                if (match(start))
+                    return true;
+            }
+            hitEnd = true;
+            return false;
+        }
+
+        // Tries to match an attribute starting at a position.
+        private boolean match(int start) {
+            int nameStart = whitespaceRun(start);
+            int nameEnd = run(nameStart, NAME);
+            // Starting anywhere in the whitespace gives the same name, and
+            // anywhere in the name the same ending, which is no different.
+            if (nameEnd == nameStart) {
+                retry = nameStart + 1;
+                return false;
+            }
+            retry = nameEnd;
+            int equals = whitespaceRun(nameEnd);
+            if (!isAt(equals, '='))
+                return false;
+            int valueStart = whitespaceRun(equals + 1);
+            int valueEnd = matchValue(valueStart);
+            if (valueEnd == -1 && valueStart > equals + 1) {
+                // Backtracking into the whitespace before a value that can't
+                // be matched, the last whitespace character starts an
+                // unquoted value.
+                valueStart--;
+                valueEnd = run(valueStart + 1, UNQUOTED);
+            }
+            if (valueEnd == -1)
+                return false;
+
+            name = text.substring(nameStart, nameEnd);
+            value = text.substring(valueStart, valueEnd);
+            position = valueEnd;
+            return true;
+        }
+
+        // Matches a double quoted, single quoted or unquoted value, returning
+        // its end, or -1 if there isn't one.
+        private int matchValue(int start) {
+            if (start == text.length()) {
+                hitEnd = true;
+                return -1;
+            }
+            char c = text.charAt(start);
+            if (c == '"' || c == '\'') {
+                int close = text.indexOf(c, start + 1);
+                if (close == -1) {
+                    hitEnd = true;
+                    return -1;
+                }
+                return close + 1;
+            }
+            if (c == '>')
+                return -1;
+            return run(start + 1, UNQUOTED);
+        }
+
+        private boolean isAt(int i, char c) {
+            if (i == text.length()) {
+                hitEnd = true;
+                return false;
+            }
+            return text.charAt(i) == c;
+        }
+
+        private int whitespaceRun(int i) {
+            return run(i, WHITESPACE);
+        }
+
+        // Returns the end of the run of a kind of character from a position,
+        // noting if it runs to the end of the text.
+        private int run(int i, int kind) {
+            while (i < text.length() && isKind(text.charAt(i), kind))
+                i++;
+            if (i == text.length())
+                hitEnd = true;
+            return i;
+        }
+    }
+
+    // Kinds of character run.
+    private static final int NAME = 0;
+    private static final int WHITESPACE = 1;
+    private static final int UNQUOTED = 2;
+
+    private static boolean isKind(char c, int kind) {
+        switch (kind) {
+            case NAME:
+                return isNameChar(c);
+            case WHITESPACE:
+                return isWhitespace(c);
+            default:
+                return !isWhitespace(c) && c != '>';
+        }
+    }
+}
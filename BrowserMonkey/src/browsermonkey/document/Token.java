@@ -1,8 +1,6 @@
 package browsermonkey.document;
 
-import java.util.HashMap;
 import java.util.Map;
-import browsermonkey.utility.RegexUtility;
 
 /**
  * Represents a token for use in the tokeniser and the parser. Stores the tag or
@@ -12,10 +10,17 @@ import browsermonkey.utility.RegexUtility;
  */
 public class Token {
     private String tag;
+    private int tagId = TagSymbolTable.UNKNOWN;
     private boolean endTag;
     private String fullTag;
     private Map<String, String> attributes;
     private TokenType type;
+    // For tokens made from a region of the page, the page and region, from
+    // which the full tag and attributes are only read when asked for.
+    private CharSequence page;
+    private int start;
+    private int end;
+    private boolean classified;
 
     /**
      * Constructor for class token. Creates a new token with the supplied tag and
@@ -35,12 +40,37 @@ public class Token {
         if (type == TokenType.TEXT){
             tag = fullTag;
         } else if(type == TokenType.TAG) { //If type is tag
-            //Regex to get the a in <a href="b">
-            tag = RegexUtility.scan(fullTag, "[\\w:-]+")[0][0].toLowerCase();
+            //Scan for the a in <a href="b">
+            tag = TagScanner.scanName(fullTag);
+            if (tag == null)
+                throw new ArrayIndexOutOfBoundsException("Tag has no name: "+fullTag);
+            tagId = TagSymbolTable.lookup(tag);
             classifyTag();
         }
     }
 
+    /**
+     * Creates a token for a region of the page, already scanned by the
+     * <code>Tokeniser</code>. No strings are made until they are asked for.
+     * @param page the page text
+     * @param start the index of the start of the token
+     * @param end the index after the end of the token
+     * @param type Whether this token is a Tag or Text type
+     * @param tag for tags, the tag name, otherwise null
+     * @param tagId for tags, the id of the tag name in the
+     * <code>TagSymbolTable</code>
+     * @param endTag true if the tag is an end tag
+     */
+    Token(CharSequence page, int start, int end, TokenType type, String tag, int tagId, boolean endTag) {
+        this.page = page;
+        this.start = start;
+        this.end = end;
+        this.type = type;
+        this.tag = tag;
+        this.tagId = tagId;
+        this.endTag = endTag;
+    }
+
     /**
      * Returns true if the token contains an end tag.
      * @return True if token represents end tag
@@ -62,7 +92,7 @@ public class Token {
      * @return True if there are any attributes
      */
     public boolean hasAttributes(){
-        return (attributes.size() > 0);
+        return (getAttributes().size() > 0);
     }
 
     /**
@@ -70,6 +100,8 @@ public class Token {
      * @return Map containing all the attributes stored for this tag token
      */
     public Map<String, String> getAttributes() {
+        if (type == TokenType.TAG && !classified)
+            classifyAttributes();
         return attributes;
     }
 
@@ -79,6 +111,8 @@ public class Token {
      * @return Full tag for this token
      */
     public String getFullTag(){
+        if (fullTag == null)
+            fullTag = page.subSequence(start, end).toString();
         return fullTag;
     }
 
@@ -96,8 +130,8 @@ public class Token {
      * @param tag Tag to change this token to
      */
     public void setTag(String tag) {
-        this.fullTag.replaceFirst(this.tag, tag);
         this.tag = tag;
+        tagId = type == TokenType.TAG ? TagSymbolTable.lookup(tag) : TagSymbolTable.UNKNOWN;
     }
 
     /**
@@ -105,28 +139,28 @@ public class Token {
      * @return Tag for this token
      */
     public String getTag(){
+        if (tag == null)
+            tag = getFullTag();
         return tag;
     }
 
+    /**
+     * Returns the id of the tag name in the <code>TagSymbolTable</code>, so
+     * tags can be compared without comparing names.
+     * @return the id, or <code>TagSymbolTable.UNKNOWN</code> for text and
+     * unregistered tags
+     */
+    public int getTagId() {
+        return tagId;
+    }
+
     /**
      * This method extracts any attributes that may be present in the full tag of
      * this token. It extracts them, separates them and puts them into the attributes
      * map. Also sets up the variables like endTag.
      */
     public void classifyTag(){
-        String[][] atts = RegexUtility.scan(fullTag, "<[\\w:-]+\\s+(.*)>");
-        if (atts.length > 0) {
-            String[][] attributeStrings = RegexUtility.scan(atts[0][0], "\\s*([\\w:-]+)\\s*=\\s*(\"[^\"]*\"|'[^']*'|[^\"'>][^\\s>]*)");
-            //Regex grabs any attributes from the tag and stores them in a hash map
-            attributes = new HashMap<String, String>();
-
-            for (String[] attribute : attributeStrings) {
-                String value = attribute[1];
-                if ((value.startsWith("\"") && value.endsWith("\"")) || (value.startsWith("\'") && value.endsWith("\'")))
-                    value = value.substring(1, value.length()-1);
-                attributes.put(attribute[0].toLowerCase(), value);
-            }
-        }
+        classifyAttributes();
 
         //Determine if the tag is an end tag by looking for a / before the tag name. (</b>)
         int endTagIndex = fullTag.indexOf('/');
@@ -138,5 +172,11 @@ public class Token {
         }
     }
 
+    // Extracts the attributes from the full tag into the attributes map.
+    private void classifyAttributes() {
+        classified = true;
+        attributes = TagScanner.scanAttributes(getFullTag());
+    }
+
 
 }
\ No newline at end of file
@@ -1,18 +1,118 @@
 package browsermonkey.document;
 
 import browsermonkey.utility.BrowserMonkeyLogger;
+import java.io.*;
+import java.nio.*;
 import java.util.*;
 
 /**
  * Tokeniser class takes the raw text input and produces a useful tree of Tokens
  * for the Parser to use. It does this mainly by looking for <> characters.
+ * <p>
+ * Tokens are recorded compactly as regions of the page in primitive arrays,
+ * and are only turned into <code>Token</code>s as they are iterated over, so
+ * tokenising makes almost no garbage. Tag names are shared by all the tags
+ * with that name, and are looked up in the <code>TagSymbolTable</code> only
+ * the first time they're seen.
+ * <p>
+ * Tokens can be pulled one at a time with <code>nextToken</code>, reading
+ * from a <code>Reader</code> only as far as is needed for the next token. The
+ * text before it is then dropped, so a page being downloaded can be parsed as
+ * it arrives, holding no more of it than the largest token.
+ * <p>
+ * Optionally, the ends of runs of text and of tags are found with a
+ * <code>StructuralIndex</code> of the page, 64 characters at a time, and very
+ * large pages are tokenised in parallel by a <code>ParallelTokeniser</code>.
  * @author Paul Calcraft, Daniel Cooper, Lawrence Dine
  */
 public class Tokeniser {
-    private List<Token> tokens;
-    private String page;
+    // Kinds of token record.
+    private static final byte TEXT = 0;
+    private static final byte START_TAG = 1;
+    private static final byte END_TAG = 2;
+    private static final byte MADE = 3;
+    // Least number of characters read from a Reader at a time.
+    private static final int WINDOW_SIZE = 16*1024;
+    // Whether new tokenisers find '<' and '>' with a StructuralIndex.
+    private static boolean structuralIndexing = Boolean.getBoolean("browsermonkey.structuralIndex");
+    // Characters searched one at a time before using the StructuralIndex.
+    private static final int SHORT_RUN = 16;
+    // Whole pages at least this long are tokenised in parallel, in chunks of
+    // about this many characters, if the threshold is positive.
+    private static int parallelThreshold = Integer.getInteger("browsermonkey.parallelTokenise", 0);
+    private static int parallelChunkSize = Integer.getInteger("browsermonkey.parallelChunkSize", 1024*1024);
+
+    private byte[] kinds;
+    private int[] starts;
+    private int[] ends;
+    private int[] values;
+    private int tokenCount;
+    private int nextToken;
+    private List<Token> madeTokens;
+    private NameTable names;
+
+    // The text read so far, from pageStart (relative to the whole page) to
+    // pageEnd. Text read from a Reader is held in window, which is replaced
+    // rather than overwritten when text is dropped, so Tokens made from it
+    // stay valid.
+    private CharSequence page;
+    private char[] window;
+    private int pageStart;
+    private int pageEnd;
+    private Reader input;
+    // The start of the text that must be kept when reading more, unless
+    // everything is being kept for getTokens.
+    private int keepPos;
+    private boolean keepAll;
+
+    private StructuralIndex index;
+
     private int currentPos;
     private boolean conformant;
+    // For tokenisers of part of a page being tokenised in parallel, the
+    // conformance errors found, which are only reported if the tokens are
+    // used, and the ids in the page's tokeniser of the names found.
+    private List<String> deferredErrors;
+    private int[] adoptedNames;
+    // An exception tokenising in parallel for nextToken threw, thrown once
+    // the tokens before it have been returned.
+    private RuntimeException failure;
+    // For tokenisers of part of a page, whether they may only read part of
+    // what's left, and whether they've needed to read past it.
+    private boolean limited;
+    private boolean passedLimit;
+
+    /**
+     * Sets whether tokenisers made from now on find the ends of runs of text
+     * and of tags with a <code>StructuralIndex</code>, a block of characters
+     * at a time, rather than a character at a time.
+     * @param enabled
+     */
+    public static void setStructuralIndexing(boolean enabled) {
+        structuralIndexing = enabled;
+    }
+
+    public static boolean isStructuralIndexing() {
+        return structuralIndexing;
+    }
+
+    /**
+     * Sets which pages are tokenised in parallel, on all available
+     * processors. Tokens are the same either way, but for very large pages,
+     * finding them in parallel is quicker. Only pages given whole, not read
+     * from a <code>Reader</code>, can be tokenised in parallel.
+     * @param threshold the length of the shortest page tokenised in
+     * parallel, or 0 for none
+     * @param chunkSize the number of characters tokenised by each task
+     */
+    public static void setParallelTokenising(int threshold, int chunkSize) {
+        parallelThreshold = threshold;
+        parallelChunkSize = chunkSize;
+    }
+
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
 
     /**
      * Returns true if the tokenisation didn't have to compensate for any
@@ -22,115 +122,574 @@ public class Tokeniser {
     public boolean isConformant() {
         return conformant;
     }
-    
+
     private void conformanceError(String error){
+        if (deferredErrors != null) {
+            deferredErrors.add(error);
+            return;
+        }
         BrowserMonkeyLogger.conformance(error);
         conformant = false;
     }
 
     /**
      * Tokenises the text from the input into a list of tokens.
-     * @param input a <code>Reader</code> for the input text
+     * @param input the input text, e.g. a <code>String</code> or a
+     * <code>CharBuffer</code> decoded straight from a file
      */
-    public Tokeniser(String input) {
-        tokens = new ArrayList<Token>();
+    public Tokeniser(CharSequence input) {
+        this(Math.max(16, input.length()/32));
         page = input;
+        pageEnd = input.length();
+    }
+
+    /**
+     * Tokenises the text read from the input into a list of tokens. The input
+     * is read a chunk at a time as tokens are needed, straight into the page
+     * window. If reading fails part way, the text read so far is used.
+     * @param input a <code>Reader</code> for the input text
+     */
+    public Tokeniser(Reader input) {
+        this(256);
+        this.input = input;
+        window = new char[WINDOW_SIZE];
+        page = CharBuffer.wrap(window);
+    }
+
+    /**
+     * Makes a tokeniser for part of a whole page, starting at a position,
+     * which keeps its tokens and defers its conformance errors. It reads no
+     * further than a limit, treating the page as ending there, and notes if
+     * it needs to, after which its tokens aren't those of the whole page.
+     * @param page
+     * @param start the position to start tokenising from
+     * @param limit the position to read up to
+     * @param capacity the number of tokens expected
+     */
+    Tokeniser(CharSequence page, int start, int limit, int capacity) {
+        this(capacity);
+        this.page = page;
+        pageEnd = Math.min(page.length(), limit);
+        limited = pageEnd < page.length();
+        currentPos = start;
+        keepAll = true;
+        deferredErrors = new ArrayList<String>();
+    }
+
+    private Tokeniser(int capacity) {
+        // Roughly one token per 32 characters is typical.
+        kinds = new byte[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        values = new int[capacity];
+        madeTokens = new ArrayList<Token>();
+        names = new NameTable();
+        if (structuralIndexing)
+            index = new StructuralIndex();
         currentPos = 0;
         conformant = true;
     }
 
     /**
      * Tokenise method is used to call the method that does the actual tokenisation
-     * over and over again until the tokenising is complete.
+     * over and over again until the tokenising is complete. The tokens are
+     * kept for <code>getTokens</code>, along with the text they came from.
      */
     public void tokenise() {
-        while (currentPos < page.length()) {
+        keepAll = true;
+        if (isParallel())
+            ParallelTokeniser.tokenise(this, page, parallelChunkSize);
+        while (isAvailable(currentPos)) {
             getNextToken();
         }
     }
 
+    /**
+     * Tokenises just enough of the input to return the next token. Tokens
+     * returned here aren't kept, nor is the text before them once the next
+     * is asked for.
+     * @return the next token, or null if there are no more
+     */
+    public Token nextToken() {
+        if (isParallel()) {
+            try {
+                tokenise();
+            } catch (RuntimeException ex) {
+                failure = ex;
+            }
+        }
+        if (nextToken == tokenCount) {
+            if (failure != null) {
+                RuntimeException ex = failure;
+                failure = null;
+                throw ex;
+            }
+            // Start recording again from the beginning of the arrays.
+            tokenCount = 0;
+            nextToken = 0;
+            madeTokens.clear();
+            while (tokenCount == 0 && isAvailable(currentPos)) {
+                keepPos = currentPos;
+                getNextToken();
+            }
+            if (tokenCount == 0)
+                return null;
+        }
+        return getToken(nextToken++);
+    }
+
     /**
      * This method does all the clever work for tokenising the text. See source
      * for explanatory comments.
      */
     public void getNextToken() {
-        if (page.charAt(currentPos) == '<') {   //If the character at the current position in the text is a < and therefore is opening a tag
-            if (page.length() >= currentPos + 4 && page.substring(currentPos + 1, currentPos + 4).equals("!--")) {   //First we do a check to see if it's a comment
-                int tagTokenEnd = page.indexOf("-->", currentPos + 4);          //If it is then we skip it without doing anything
+        if (charAt(currentPos) == '<') {   //If the character at the current position in the text is a < and therefore is opening a tag
+            if (regionMatches(currentPos + 1, "!--")) {   //First we do a check to see if it's a comment
+                int tagTokenEnd = skipTo("-->", currentPos + 4);          //If it is then we skip it without doing anything
                 if(tagTokenEnd == -1){                                          //Conformance testing
-                    currentPos = page.length();
+                    currentPos = pageEnd;
                     conformanceError("Comment tag does not end, treating rest of the document as a comment.");
                 } else {
                     currentPos = tagTokenEnd + 3;               //Skipped
                 }
             } else {
-                int nextTagOpen = page.indexOf('<', currentPos + 1);            // if itisn't a comment we check for the next open and close tags
-                int tagTokenEnd = page.indexOf('>', currentPos + 1);
+                int tagTokenStart = currentPos;
+                int tagTokenEnd = find(currentPos + 1, true);          // if itisn't a comment we look for whichever of the next open or close tag comes first
 
-                if (nextTagOpen == -1) {
-                    nextTagOpen = page.length();        //check in case this is the last tag and there is no next tag
-                }
+                String tag;
+                if (!isAvailable(tagTokenEnd) || charAt(tagTokenEnd) == '<') {               //Conformance fixing for if the next end tag is after an open tag
+                    int nextTagOpen = tagTokenEnd;
+                    String fullTag = substring(currentPos, nextTagOpen) + ">";        //instead of breaking it treats the whole text between the open and close as being one tag
 
-                String fullTag;
-                if (tagTokenEnd == -1 || tagTokenEnd > nextTagOpen) {               //Conformance fixing for if the next end tag is after an open tag
-                    fullTag = page.substring(currentPos, nextTagOpen) + ">";        //instead of breaking it treats the whole text between the open and close as being one tag
-                    tagTokenEnd = nextTagOpen;
-
-                    if (nextTagOpen == page.length())
+                    if (!isAvailable(nextTagOpen))
                         conformanceError("Tag does not end with '>' throughout the document, closing at end of document: "+fullTag);
                     else
                         conformanceError("Tag does not close with '>' before another is opened with '<', forcing close: "+fullTag);
+
+                    currentPos = tagTokenEnd;
+
+                    if (isEmptyTag(tagTokenStart, nextTagOpen + 1)) {
+                        conformanceError("Empty tag found, ignoring.");
+                        return;
+                    }
+
+                    tag = addToken(new Token(fullTag, TokenType.TAG));    //the corrected tag isn't in the page, so is made now
                 } else {
-                    fullTag = page.substring(currentPos, tagTokenEnd + 1);
                     tagTokenEnd++;
-                }
+                    currentPos = tagTokenEnd;               //Moving on current position by length of tag
 
-                currentPos = tagTokenEnd;               //Moving on current position by length of tag
+                    if (isEmptyTag(tagTokenStart, tagTokenEnd)) {
+                        conformanceError("Empty tag found, ignoring.");
+                        return;
+                    }
 
-                if (fullTag.matches("<\\s*/?\\s*>")) {
-                    conformanceError("Empty tag found, ignoring.");
-                    return;
+                    tag = addTag(tagTokenStart, tagTokenEnd);           //recording a new tag token for the tag's place in the page
                 }
 
-                Token token = new Token(fullTag, TokenType.TAG);           //creating a new tag token with the tag stored
-                tokens.add(token);
-                
-
-                if (token.getTag().equals("title")) {               //Special case handling for title tag
-                    int endTitle = page.substring(tagTokenEnd).toLowerCase().indexOf("</title>");
-                    String text;
+                if (tag.equals("title")) {               //Special case handling for title tag
+                    int endTitle = indexOfIgnoreCase("</title>", tagTokenEnd);
                     if (endTitle != -1) {
-                        endTitle += tagTokenEnd;
-                        text = page.substring(currentPos, endTitle);
+                        addText(currentPos, endTitle);
                         currentPos = endTitle + 8;
                     } else {
                         conformanceError("Title tag does not end, treating rest of document as title.");
-                        text = page.substring(currentPos, page.length());
-                        currentPos = page.length();
+                        addText(currentPos, pageEnd);
+                        currentPos = pageEnd;
                     }
-                    tokens.add(new Token(text, TokenType.TEXT));
-                    tokens.add(new Token("</title>", TokenType.TAG));
+                    addToken(new Token("</title>", TokenType.TAG));
+                } else if ((tag.equals("script") || tag.equals("style")) && isStartTag(tokenCount - 1)) {
+                    addRawText(tag);            //Script and style contents are a single text token up to the end tag
                 }
             }
         } else {
-            int textTokenEnd = page.indexOf('<', currentPos);       //This scoops all text between tags into a text token
-            String text;
-            if (textTokenEnd != -1) {
-                text = page.substring(currentPos, textTokenEnd);
-            } else {
-                text = page.substring(currentPos, page.length());
+            int textTokenEnd = find(currentPos + 1, false);            //This scoops all text between tags into a text token
+            addText(currentPos, textTokenEnd);
+            currentPos = textTokenEnd;
+        }
+    }
+
+    // Returns true if the page should be tokenised in parallel, which must be
+    // from the start, before any tokens are found.
+    private boolean isParallel() {
+        return input == null && currentPos == 0 && tokenCount == 0 && parallelThreshold > 0
+                && pageEnd >= parallelThreshold && deferredErrors == null;
+    }
+
+    // Tokenising in parallel, for ParallelTokeniser.
+
+    /**
+     * Returns the position tokenising has reached.
+     * @return
+     */
+    int getPosition() {
+        return currentPos;
+    }
+
+    /**
+     * Returns the number of tokens found so far.
+     * @return
+     */
+    int getTokenRecordCount() {
+        return tokenCount;
+    }
+
+    /**
+     * Returns true if tokenising has needed to read past the limit of a
+     * tokeniser of part of a page.
+     * @return
+     */
+    boolean hasPassedLimit() {
+        return passedLimit;
+    }
+
+    /**
+     * Returns the conformance errors deferred so far.
+     * @return
+     */
+    List<String> getDeferredErrors() {
+        return deferredErrors;
+    }
+
+    /**
+     * Takes on tokens found by a tokeniser of part of the same page, and the
+     * conformance errors found with them, continuing from where they end.
+     * @param part the tokeniser of part of the page
+     * @param firstRecord the index of the first of its tokens to take
+     * @param endRecord the index after the last
+     * @param firstError the index of the first of its errors to report
+     * @param endError the index after the last
+     * @param position the position its tokenising reached after the tokens
+     */
+    void adopt(Tokeniser part, int firstRecord, int endRecord, int firstError, int endError, int position) {
+        if (part.adoptedNames == null) {
+            part.adoptedNames = new int[part.names.size()];
+            Arrays.fill(part.adoptedNames, -1);
+        }
+        int count = endRecord - firstRecord;
+        ensureCapacity(tokenCount + count);
+        System.arraycopy(part.kinds, firstRecord, kinds, tokenCount, count);
+        System.arraycopy(part.starts, firstRecord, starts, tokenCount, count);
+        System.arraycopy(part.ends, firstRecord, ends, tokenCount, count);
+        for (int i = 0; i < count; i++) {
+            int value = part.values[firstRecord + i];
+            if (kinds[tokenCount + i] == MADE) {
+                madeTokens.add(part.madeTokens.get(value));
+                value = madeTokens.size() - 1;
+            } else if (kinds[tokenCount + i] != TEXT) {
+                if (part.adoptedNames[value] == -1) {
+                    String name = part.names.getName(value);
+                    part.adoptedNames[value] = names.lookup(name, 0, name.length());
+                }
+                value = part.adoptedNames[value];
             }
-            currentPos = currentPos + text.length();
-            tokens.add(new Token(text, TokenType.TEXT));
+            values[tokenCount + i] = value;
+        }
+        tokenCount += count;
+        for (int i = firstError; i < endError; i++)
+            conformanceError(part.deferredErrors.get(i));
+        currentPos = position;
+    }
+
+    // Adds the contents of a raw text element, such as a script, as a single
+    // text token, and the end tag after it. Nothing in it is a tag until the
+    // end tag, which is the name after </, in any case, followed by > or
+    // whitespace then >.
+    private void addRawText(String name) {
+        int endStart = currentPos;
+        int endEnd = -1;
+        while (endEnd == -1) {
+            endStart = find(endStart, false);
+            if (!isAvailable(endStart))
+                break;
+            endEnd = matchEndTag(name, endStart);
+            if (endEnd == -1)
+                endStart++;
+        }
+
+        if (endEnd == -1) {
+            conformanceError("The "+name+" tag does not end, treating rest of document as its contents.");
+            if (currentPos < pageEnd)
+                addText(currentPos, pageEnd);
+            currentPos = pageEnd;
+            addToken(new Token("</"+name+">", TokenType.TAG));
+        } else {
+            if (currentPos < endStart)
+                addText(currentPos, endStart);
+            currentPos = endEnd;
+            addTag(endStart, endEnd);
+        }
+    }
+
+    // Returns the end of the end tag for a name at a position, or -1 if
+    // there isn't one there.
+    private int matchEndTag(String name, int pos) {
+        if (!regionMatches(pos, "</"))
+            return -1;
+        pos += 2;
+        if (!isAvailable(pos + name.length()))
+            return -1;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase(charAt(pos + i)) != name.charAt(i))
+                return -1;
+        }
+        pos += name.length();
+        while (isAvailable(pos) && TagScanner.isWhitespace(charAt(pos)))
+            pos++;
+        if (!isAvailable(pos) || charAt(pos) != '>')
+            return -1;
+        return pos + 1;
+    }
+
+    // Returns true if a token record is a start tag.
+    private boolean isStartTag(int record) {
+        if (kinds[record] == MADE)
+            return madeTokens.get(values[record]).isStartTag();
+        return kinds[record] == START_TAG;
+    }
+
+    // Token records. Each token is a kind and a region of the page, plus for
+    // tags the id of its name, or for tokens made up front their index in
+    // madeTokens.
+
+    private void addRecord(byte kind, int start, int end, int value) {
+        if (tokenCount == kinds.length)
+            ensureCapacity(tokenCount + 1);
+        kinds[tokenCount] = kind;
+        starts[tokenCount] = start;
+        ends[tokenCount] = end;
+        values[tokenCount] = value;
+        tokenCount++;
+    }
+
+    private void ensureCapacity(int count) {
+        if (count > kinds.length) {
+            int capacity = Math.max(count, kinds.length*2);
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    private void addText(int start, int end) {
+        addRecord(TEXT, start, end, 0);
+    }
+
+    // Adds a token that has already been made, returning its tag.
+    private String addToken(Token token) {
+        addRecord(MADE, 0, 0, madeTokens.size());
+        madeTokens.add(token);
+        return token.getTag();
+    }
+
+    // Adds the tag in a region of the page, returning its name. The name is
+    // the first run of word characters, colons and hyphens, and the tag is
+    // an end tag if there's a / before it.
+    private String addTag(int start, int end) {
+        int nameStart = start;
+        boolean slash = false;
+        while (nameStart < end && !TagScanner.isNameChar(charAt(nameStart))) {
+            if (charAt(nameStart) == '/')
+                slash = true;
+            else if (charAt(nameStart) > 127)
+                break;
+            nameStart++;
+        }
+        if (nameStart == end || !TagScanner.isNameChar(charAt(nameStart))) {
+            // Nameless tags, or those with other characters before the name
+            // whose case could matter, are classified by the Token itself.
+            return addToken(new Token(substring(start, end), TokenType.TAG));
+        }
+        int nameEnd = nameStart + 1;
+        while (nameEnd < end && TagScanner.isNameChar(charAt(nameEnd)))
+            nameEnd++;
+
+        int name = names.lookup(page, nameStart - pageStart, nameEnd - pageStart);
+        addRecord(slash ? END_TAG : START_TAG, start, end, name);
+        return names.getName(name);
+    }
+
+    // Checks if a tag is just <>, </> or with whitespace in them. Only the
+    // characters between the first and last are looked at.
+    private boolean isEmptyTag(int start, int end) {
+        int i = start + 1;
+        end--;
+        while (i < end && TagScanner.isWhitespace(charAt(i)))
+            i++;
+        if (i < end && charAt(i) == '/')
+            i++;
+        while (i < end && TagScanner.isWhitespace(charAt(i)))
+            i++;
+        return i == end;
+    }
+
+    private Token getToken(int index) {
+        switch (kinds[index]) {
+            case TEXT:
+                return new Token(page, starts[index] - pageStart, ends[index] - pageStart, TokenType.TEXT, null,
+                        TagSymbolTable.UNKNOWN, false);
+            case MADE:
+                return madeTokens.get(values[index]);
+            default:
+                return new Token(page, starts[index] - pageStart, ends[index] - pageStart, TokenType.TAG,
+                        names.getName(values[index]), names.getSymbol(values[index]), kinds[index] == END_TAG);
+        }
+    }
+
+    // Reading the page. Positions are relative to the whole page, and text
+    // is read from the input as positions past what has been read are asked
+    // for.
+
+    // Returns true if the page has a character at a position, reading up to
+    // it if need be.
+    private boolean isAvailable(int pos) {
+        while (pos >= pageEnd) {
+            if (!read())
+                return false;
         }
+        return true;
+    }
+
+    // The character at a position, which must be available.
+    private char charAt(int pos) {
+        if (window != null)
+            return window[pos - pageStart];
+        return page.charAt(pos);
+    }
+
+    // Reads more of the input into the window, returning false at the end of
+    // the input.
+    private boolean read() {
+        if (input == null) {
+            if (limited)
+                passedLimit = true;
+            return false;
+        }
+
+        if (pageEnd - pageStart == window.length) {
+            // The window is full, so move the text still needed into a new
+            // one with room to read more.
+            int keepStart = keepAll ? pageStart : keepPos;
+            int kept = pageEnd - keepStart;
+            char[] newWindow = new char[Math.max(WINDOW_SIZE, kept*2)];
+            System.arraycopy(window, keepStart - pageStart, newWindow, 0, kept);
+            window = newWindow;
+            page = CharBuffer.wrap(window);
+            pageStart = keepStart;
+        }
+
+        try {
+            int read;
+            do {
+                read = input.read(window, pageEnd - pageStart, window.length - (pageEnd - pageStart));
+            } while (read == 0);
+            if (read != -1) {
+                pageEnd += read;
+                return true;
+            }
+        } catch (IOException ex) {
+            BrowserMonkeyLogger.warning("Could not read the whole page, using what was read: "+ex);
+        }
+        input = null;
+        return false;
+    }
+
+    // Equivalents of the String search methods for the page.
+
+    // Finds the first '<', or with tagEnd the first '<' or '>', from a
+    // position, returning the end of the page if there isn't one.
+    private int find(int pos, boolean tagEnd) {
+        // Most tags and many runs of text are short, so the index is only
+        // used for whatever's left after the first few characters.
+        int limit = index == null ? Integer.MAX_VALUE : pos + SHORT_RUN;
+        while (pos < limit && isAvailable(pos) && charAt(pos) != '<' && (!tagEnd || charAt(pos) != '>'))
+            pos++;
+        if (pos < limit)
+            return pos;
+        while (isAvailable(pos)) {
+            if (!index.covers(pos)) {
+                int length = Math.min(StructuralIndex.BLOCK_SIZE, pageEnd - pos);
+                if (window != null)
+                    index.index(window, pos - pageStart, pos, length);
+                else
+                    index.index(page, pos - pageStart, pos, length);
+            }
+            int found = index.find(pos, tagEnd);
+            if (found != -1)
+                return found;
+            pos = index.getBlockEnd();
+        }
+        return pos;
+    }
+
+    private String substring(int start, int end) {
+        return page.subSequence(start - pageStart, end - pageStart).toString();
+    }
+
+    // Finds a String in the page like indexOf, but dropping the text passed
+    // over as it goes, for skipping comments.
+    private int skipTo(String s, int fromIndex) {
+        for (int i = fromIndex; isAvailable(i + s.length() - 1); i++) {
+            if (regionMatches(i, s))
+                return i;
+            if (!keepAll)
+                keepPos = i;
+        }
+        return -1;
+    }
+
+    // Finds a lowercase String in the page, ignoring the case of the page.
+    private int indexOfIgnoreCase(String s, int fromIndex) {
+        for (int i = fromIndex; isAvailable(i + s.length() - 1); i++) {
+            int j = 0;
+            while (j < s.length() && Character.toLowerCase(charAt(i + j)) == s.charAt(j))
+                j++;
+            if (j == s.length())
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean regionMatches(int offset, String s) {
+        if (!isAvailable(offset + s.length() - 1))
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (charAt(offset + i) != s.charAt(i))
+                return false;
+        }
+        return true;
     }
 
     /**
      * After the tokenisation is complete this is used to get an iterator
-     * containing the tokens. This method is used by the <code>Parser</code>.
+     * containing the tokens.
      * @return Iterator of Tokens
      */
     public Iterator<Token> getTokens() {
-        return tokens.iterator();
+        return new Iterator<Token>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < tokenCount;
+            }
+
+            public Token next() {
+                if (next == tokenCount)
+                    throw new NoSuchElementException();
+                return getToken(next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the number of tokens found by <code>tokenise</code>.
+     * @return
+     */
+    public int getTokenCount() {
+        return tokenCount;
     }
-}
\ No newline at end of file
+}
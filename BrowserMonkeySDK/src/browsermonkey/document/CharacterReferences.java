@@ -0,0 +1,231 @@
+package browsermonkey.document;
+
+import java.util.*;
+
+/**
+ * Decodes character references, such as <code>&amp;amp;</code> and
+ * <code>&amp;#x263A;</code>, as HTML5 does in text.
+ * <p>
+ * Named references are case sensitive, and are the longest name from the
+ * start that is in the full HTML5 list, which includes legacy names without a
+ * ;, so <code>&amp;notit;</code> is a not sign followed by <code>it;</code>.
+ * They're looked up in a trie built once from {@link CharacterReferenceData},
+ * so decoding one takes a step per character and allocates nothing.
+ * <p>
+ * Numeric references are decimal, or hexadecimal after <code>#x</code> or
+ * <code>#X</code>, and their ; is optional. Numbers that aren't characters
+ * become U+FFFD, and those of the C1 controls the characters of windows-1252
+ * that they usually mean. Characters outside the Basic Multilingual Plane
+ * become surrogate pairs.
+ * <p>
+ * An &amp; that doesn't start a reference is left as it is.
+ * @author Paul Calcraft
+ */
+public final class CharacterReferences {
+    // The trie of names, as arrays indexed by node, the root being node 0.
+    // The children of each node are contiguous, in order of their characters.
+    private static final char[] characters;
+    private static final int[] firstChild;
+    private static final int[] childCount;
+    // The code points of the name ending at each node: the first is -1 if
+    // none does, and the second 0 if it stands for just one.
+    private static final int[] firstCodePoint;
+    private static final int[] secondCodePoint;
+
+    // What the numbers 0x80 to 0x9F stand for.
+    private static final int[] WINDOWS_1252 = {
+        0x20AC, 0x81, 0x201A, 0x0192, 0x201E, 0x2026, 0x2020, 0x2021,
+        0x02C6, 0x2030, 0x0160, 0x2039, 0x0152, 0x8D, 0x017D, 0x8F,
+        0x90, 0x2018, 0x2019, 0x201C, 0x201D, 0x2022, 0x2013, 0x2014,
+        0x02DC, 0x2122, 0x0161, 0x203A, 0x0153, 0x9D, 0x017E, 0x0178
+    };
+
+    static {
+        String[] names = new String[CharacterReferenceData.COUNT];
+        int[] first = new int[names.length];
+        int[] second = new int[names.length];
+        int count = 0;
+        int nameLength = 0;
+        for (String line : CharacterReferenceData.ENTRIES) {
+            for (String entry : line.split(" ")) {
+                int equals = entry.lastIndexOf('=');
+                String[] codePoints = entry.substring(equals+1).split("\\+");
+                names[count] = entry.substring(0, equals);
+                first[count] = Integer.parseInt(codePoints[0], 16);
+                second[count] = codePoints.length > 1 ? Integer.parseInt(codePoints[1], 16) : 0;
+                nameLength += names[count].length();
+                count++;
+            }
+        }
+
+        // Each node is made with the range of names under it, and its
+        // children are made in turn, breadth first, so that they're
+        // contiguous. Names are in order, so one ending at a node comes
+        // first in its range.
+        int maxNodes = nameLength+1;
+        char[] nodeCharacters = new char[maxNodes];
+        int[] nodeFirstChild = new int[maxNodes];
+        int[] nodeChildCount = new int[maxNodes];
+        int[] nodeFirstCodePoint = new int[maxNodes];
+        int[] nodeSecondCodePoint = new int[maxNodes];
+        int[] rangeStart = new int[maxNodes];
+        int[] rangeEnd = new int[maxNodes];
+        int[] depth = new int[maxNodes];
+        rangeEnd[0] = count;
+        int nodes = 1;
+        for (int node = 0; node < nodes; node++) {
+            int i = rangeStart[node];
+            int d = depth[node];
+            nodeFirstCodePoint[node] = -1;
+            if (i < rangeEnd[node] && names[i].length() == d) {
+                nodeFirstCodePoint[node] = first[i];
+                nodeSecondCodePoint[node] = second[i];
+                i++;
+            }
+            nodeFirstChild[node] = nodes;
+            while (i < rangeEnd[node]) {
+                char c = names[i].charAt(d);
+                int j = i+1;
+                while (j < rangeEnd[node] && names[j].charAt(d) == c)
+                    j++;
+                nodeCharacters[nodes] = c;
+                rangeStart[nodes] = i;
+                rangeEnd[nodes] = j;
+                depth[nodes] = d+1;
+                nodes++;
+                i = j;
+            }
+            nodeChildCount[node] = nodes-nodeFirstChild[node];
+        }
+
+        characters = Arrays.copyOf(nodeCharacters, nodes);
+        firstChild = Arrays.copyOf(nodeFirstChild, nodes);
+        childCount = Arrays.copyOf(nodeChildCount, nodes);
+        firstCodePoint = Arrays.copyOf(nodeFirstCodePoint, nodes);
+        secondCodePoint = Arrays.copyOf(nodeSecondCodePoint, nodes);
+    }
+
+    private CharacterReferences() {
+    }
+
+    /**
+     * Decodes all the character references in some text.
+     * @param text
+     * @return the decoded text, which is text itself if it has no references
+     */
+    public static String decode(String text) {
+        int i = text.indexOf('&');
+        if (i == -1)
+            return text;
+        StringBuilder result = new StringBuilder(text.length());
+        result.append(text, 0, i);
+        boolean decoded = false;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            int next = c == '&' ? decode(text, i, text.length(), result) : -1;
+            if (next == -1) {
+                result.append(c);
+                i++;
+            } else {
+                decoded = true;
+                i = next;
+            }
+        }
+        return decoded ? result.toString() : text;
+    }
+
+    /**
+     * Decodes the character reference starting at an &amp;, appending its
+     * characters.
+     * @param text
+     * @param start the position of the &amp;
+     * @param end where the reference must end by
+     * @param out
+     * @return the position after the reference, or -1 if there isn't one, in
+     * which case nothing is appended
+     */
+    public static int decode(CharSequence text, int start, int end, StringBuilder out) {
+        if (start+1 >= end)
+            return -1;
+        if (text.charAt(start+1) == '#')
+            return decodeNumber(text, start+2, end, out);
+
+        int node = 0;
+        int matched = -1;
+        int matchEnd = -1;
+        for (int i = start+1; i < end; i++) {
+            node = child(node, text.charAt(i));
+            if (node == -1)
+                break;
+            if (firstCodePoint[node] != -1) {
+                matched = node;
+                matchEnd = i+1;
+            }
+        }
+        if (matched == -1)
+            return -1;
+        out.appendCodePoint(firstCodePoint[matched]);
+        if (secondCodePoint[matched] != 0)
+            out.appendCodePoint(secondCodePoint[matched]);
+        return matchEnd;
+    }
+
+    // Returns the child of a node for a character, or -1 if there isn't one.
+    private static int child(int node, char c) {
+        int low = firstChild[node];
+        int high = low+childCount[node]-1;
+        while (low <= high) {
+            int middle = (low+high) >>> 1;
+            if (characters[middle] < c)
+                low = middle+1;
+            else if (characters[middle] > c)
+                high = middle-1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    // Decodes the number of a numeric reference, starting after its #.
+    private static int decodeNumber(CharSequence text, int i, int end, StringBuilder out) {
+        int radix = 10;
+        if (i < end && (text.charAt(i) == 'x' || text.charAt(i) == 'X')) {
+            radix = 16;
+            i++;
+        }
+        int digitsStart = i;
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = digit(text.charAt(i), radix);
+            if (digit == -1)
+                break;
+            // Any number this large isn't a character, so stop before it
+            // overflows.
+            if (value <= Character.MAX_CODE_POINT)
+                value = value*radix+digit;
+        }
+        if (i == digitsStart)
+            return -1;
+        if (i < end && text.charAt(i) == ';')
+            i++;
+
+        if (value == 0 || value > Character.MAX_CODE_POINT
+                || (value >= Character.MIN_SURROGATE && value <= Character.MAX_SURROGATE))
+            value = 0xFFFD;
+        else if (value >= 0x80 && value <= 0x9F)
+            value = WINDOWS_1252[value-0x80];
+        out.appendCodePoint(value);
+        return i;
+    }
+
+    // Returns the value of an ASCII digit, or -1 if it isn't one.
+    private static int digit(char c, int radix) {
+        if (c >= '0' && c <= '9')
+            return c-'0';
+        if (radix == 16 && c >= 'a' && c <= 'f')
+            return c-'a'+10;
+        if (radix == 16 && c >= 'A' && c <= 'F')
+            return c-'A'+10;
+        return -1;
+    }
+}
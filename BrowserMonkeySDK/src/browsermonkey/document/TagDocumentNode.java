@@ -8,6 +8,7 @@ import java.util.Map;
  */
 public class TagDocumentNode extends DocumentNode {
     private String type;
+    private int typeId;
     private Map<String, String> attributes;
 
     /**
@@ -18,6 +19,15 @@ public class TagDocumentNode extends DocumentNode {
         return type;
     }
 
+    /**
+     * Gets the id of the tag type in the <code>TagSymbolTable</code>, e.g.
+     * <code>TagSymbolTable.TABLE</code>.
+     * @return the id, or <code>TagSymbolTable.UNKNOWN</code> if the type
+     * wasn't registered when the node was made
+     */
+    public int getTypeId() {
+        return typeId;
+    }
 
     /**
      * Gets the value of the specified attribute, or null if it is not
@@ -38,7 +48,19 @@ public class TagDocumentNode extends DocumentNode {
      * @param attributes the map of attributes, can be null if empty
      */
     public TagDocumentNode(String type, Map<String, String> attributes){
+        this(type, TagSymbolTable.lookup(type), attributes);
+    }
+
+    /**
+     * Constructs a new <code>TagDocumentNode</code> with the specified type,
+     * already looked up in the <code>TagSymbolTable</code>, and attributes.
+     * @param type
+     * @param typeId the id of the type
+     * @param attributes the map of attributes, can be null if empty
+     */
+    TagDocumentNode(String type, int typeId, Map<String, String> attributes) {
         this.type = type;
+        this.typeId = typeId;
         this.attributes = attributes;
     }
 
@@ -52,6 +74,7 @@ public class TagDocumentNode extends DocumentNode {
     public TagDocumentNode(String type, Map<String, String> attributes, DocumentNode... children) {
         super(children);
         this.type = type;
+        typeId = TagSymbolTable.lookup(type);
         this.attributes = attributes;
     }
 
@@ -0,0 +1,138 @@
+package browsermonkey.document;
+
+import java.util.*;
+
+/**
+ * Gives the tag names the browser knows about small integer ids, shared by
+ * the tokeniser, the parser and the renderer, so tags can be told apart and
+ * looked up in arrays without comparing or hashing strings. The common HTML
+ * tags have fixed ids, given as constants; others, such as tags added by
+ * renderer plugins, are given the next free id when registered.
+ * <p>
+ * Tags with names that aren't registered have the id <code>UNKNOWN</code>
+ * and are only known by name. Names are registered in lowercase, as tags are
+ * named by the tokeniser.
+ * @author Paul Calcraft
+ */
+public final class TagSymbolTable {
+    /**
+     * The id of tags whose names aren't registered.
+     */
+    public static final int UNKNOWN = -1;
+
+    public static final int HTML = 0;
+    public static final int HEAD = 1;
+    public static final int BODY = 2;
+    public static final int TITLE = 3;
+    public static final int TABLE = 4;
+    public static final int TR = 5;
+    public static final int TD = 6;
+    public static final int TH = 7;
+    public static final int B = 8;
+    public static final int I = 9;
+    public static final int STRONG = 10;
+    public static final int EM = 11;
+    public static final int PRE = 12;
+    public static final int P = 13;
+    public static final int BR = 14;
+    public static final int IMG = 15;
+    public static final int HR = 16;
+    public static final int LI = 17;
+    public static final int OL = 18;
+    public static final int UL = 19;
+    public static final int A = 20;
+    public static final int FONT = 21;
+    public static final int CENTER = 22;
+    public static final int BLOCKQUOTE = 23;
+    public static final int TT = 24;
+    public static final int U = 25;
+    public static final int DIV = 26;
+    public static final int DL = 27;
+    public static final int DT = 28;
+    public static final int DD = 29;
+    public static final int H1 = 30;
+    public static final int H2 = 31;
+    public static final int H3 = 32;
+    public static final int H4 = 33;
+    public static final int H5 = 34;
+    public static final int H6 = 35;
+    public static final int SCRIPT = 36;
+    public static final int STYLE = 37;
+
+    // The names of the tags with fixed ids, in id order.
+    private static final String[] FIXED_NAMES = {
+        "html", "head", "body", "title", "table", "tr", "td", "th", "b", "i",
+        "strong", "em", "pre", "p", "br", "img", "hr", "li", "ol", "ul", "a",
+        "font", "center", "blockquote", "tt", "u", "div", "dl", "dt", "dd",
+        "h1", "h2", "h3", "h4", "h5", "h6", "script", "style"
+    };
+
+    /**
+     * The number of tags with fixed ids, which are numbered from 0.
+     */
+    public static final int FIXED_COUNT = FIXED_NAMES.length;
+
+    // The registered names. Registering replaces the table, so it can be read
+    // without locking.
+    private static volatile Table table = new Table(FIXED_NAMES);
+
+    private static class Table {
+        private final String[] names;
+        private final Map<String, Integer> ids;
+
+        Table(String[] names) {
+            this.names = names;
+            ids = new HashMap<String, Integer>(names.length*2);
+            for (int i = 0; i < names.length; i++)
+                ids.put(names[i], i);
+        }
+    }
+
+    private TagSymbolTable() {
+    }
+
+    /**
+     * Returns the id of a tag name.
+     * @param name the lowercase tag name
+     * @return the id, or <code>UNKNOWN</code> if the name isn't registered
+     */
+    public static int lookup(String name) {
+        Integer id = table.ids.get(name);
+        if (id == null)
+            return UNKNOWN;
+        return id;
+    }
+
+    /**
+     * Registers a tag name, giving it an id if it doesn't have one already.
+     * @param name the lowercase tag name
+     * @return the id of the name
+     */
+    public static synchronized int register(String name) {
+        int id = lookup(name);
+        if (id != UNKNOWN)
+            return id;
+        Table oldTable = table;
+        String[] names = Arrays.copyOf(oldTable.names, oldTable.names.length+1);
+        names[oldTable.names.length] = name;
+        table = new Table(names);
+        return oldTable.names.length;
+    }
+
+    /**
+     * Returns the name of the tag with an id.
+     * @param id
+     * @return the lowercase tag name
+     */
+    public static String getName(int id) {
+        return table.names[id];
+    }
+
+    /**
+     * Returns the number of names registered, one more than the highest id.
+     * @return
+     */
+    public static int size() {
+        return table.names.length;
+    }
+}
@@ -0,0 +1,101 @@
+package browsermonkey.document;
+
+/**
+ * Turns the text of a page into the text to display, in a single pass over
+ * it: collapsing whitespace, or in preformatted elements keeping it as
+ * non-breaking spaces and single newlines, and decoding character entities.
+ * Text that needs none of this is returned as it is, without copying.
+ * <p>
+ * Entities are decoded as HTML5 decodes character references.
+ * @see CharacterReferences
+ * @author Paul Calcraft
+ */
+public final class TextNormaliser {
+    private TextNormaliser() {
+    }
+
+    /**
+     * Returns true for the whitespace characters that are collapsed.
+     * @param c
+     * @return
+     */
+    public static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Returns true if text is all whitespace, so collapses to a single space.
+     * @param text
+     * @return false if the text is empty
+     */
+    public static boolean isWhitespace(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!isWhitespace(text.charAt(i)))
+                return false;
+        }
+        return text.length() != 0;
+    }
+
+    /**
+     * Normalises the text of a page for display.
+     * @param text
+     * @param preformatted true to keep the text's whitespace, with spaces
+     * made non-breaking and each kind of line break made a single
+     * <code>\n</code>, otherwise each run of whitespace is collapsed to a
+     * single space
+     * @return the text with its entities decoded
+     */
+    public static String normalise(String text, boolean preformatted) {
+        int length = text.length();
+        int i = 0;
+        while (i < length && !needsChange(text, i, preformatted))
+            i++;
+        if (i == length)
+            return text;
+
+        StringBuilder result = new StringBuilder(length);
+        result.append(text, 0, i);
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                int next = CharacterReferences.decode(text, i, length, result);
+                if (next != -1) {
+                    i = next;
+                } else {
+                    result.append('&');
+                    i++;
+                }
+            } else if (!preformatted && isWhitespace(c)) {
+                result.append(' ');
+                do {
+                    i++;
+                } while (i < length && isWhitespace(text.charAt(i)));
+            } else if (preformatted && c == ' ') {
+                result.append('\u00A0');
+                i++;
+            } else if (preformatted && (c == '\r' || c == '\n')) {
+                result.append('\n');
+                // A \r\n or \n\r pair is one line break.
+                char pair = c == '\r' ? '\n' : '\r';
+                i += i + 1 < length && text.charAt(i + 1) == pair ? 2 : 1;
+            } else {
+                result.append(c);
+                i++;
+            }
+        }
+        return result.toString();
+    }
+
+    // Returns true if the character at a position in the text isn't kept as
+    // it is.
+    private static boolean needsChange(String text, int i, boolean preformatted) {
+        char c = text.charAt(i);
+        if (c == '&')
+            return true;
+        if (preformatted)
+            return c == ' ' || c == '\r' || (c == '\n' && i + 1 < text.length() && text.charAt(i + 1) == '\r');
+        if (c == ' ')
+            return i + 1 < text.length() && isWhitespace(text.charAt(i + 1));
+        return isWhitespace(c);
+    }
+}
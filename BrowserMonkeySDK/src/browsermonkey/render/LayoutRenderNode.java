@@ -247,7 +247,7 @@ public class LayoutRenderNode extends RenderNode {
     private void addLineSpace(boolean addAsNode) {
         // Create a defaulty formatted text node for this line space.
         TextRenderNode lineSpace = new TextRenderNode(linker);
-        lineSpace.addText("&nbsp;", Renderer.DEFAULT_FORMATTING);
+        lineSpace.addText("\u00A0", Renderer.DEFAULT_FORMATTING);
 
         // If adding as a node, use the addNode method.
         if (addAsNode) {
@@ -8,6 +8,7 @@ import java.awt.font.*;
 import java.io.*;
 import java.lang.reflect.*;
 import java.net.*;
+import java.util.concurrent.*;
 
 /**
  * Renders documents from DocumentNode trees.
@@ -16,8 +17,9 @@ import java.net.*;
 public class Renderer {
     // The current context of the document, used for loading linked resources.
     private URL documentContext;
-    // The map of TagRenderer objects for rendering TagDocumentNodes.
-    private Map<String, TagRenderer> rendererMap;
+    // The TagRenderer objects for rendering TagDocumentNodes, indexed by the
+    // id of the tag type in the TagSymbolTable.
+    private TagRenderer[] renderers;
     private Linkable linker;
     // The title of the document rendered.
     private String title = null;
@@ -28,9 +30,21 @@ public class Renderer {
     private final TagRenderer unrecognisedTagRenderer;
     // The default set of attributes for text formatting.
     public static final Map<Attribute,Object> DEFAULT_FORMATTING;
+    // Raw resource data shared by all renderers across navigations.
+    private static final ResourceCache resourceCache = new ResourceCache(
+            Long.getLong("browsermonkey.resourceCacheBytes", 16L*1024*1024),
+            Long.getLong("browsermonkey.resourceCacheMappedBytes", 256L*1024*1024),
+            Long.getLong("browsermonkey.resourceFailureLifetime", 30*1000L));
+    // Number of resources at the top of a document fetched as visible, the
+    // rest are fetched speculatively until they're shown.
+    private static final int EAGER_RESOURCE_COUNT = Integer.getInteger("browsermonkey.eagerResources", 8);
+    // Background fetches for the current document, cancelled when another
+    // document is rendered.
+    private final List<FetchScheduler.Fetch<Resource>> pendingFetches = new ArrayList<FetchScheduler.Fetch<Resource>>();
+    private int resourceCount;
     // Standard indent (used for things like blockquote, list indentation).
     public static final String STANDARD_INDENT =
-            "&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;";
+            "\u00A0\u00A0\u00A0\u00A0\u00A0\u00A0\u00A0\u00A0\u00A0\u00A0";
 
     // Statically build the default formatting attribute map as Times New Roman
     // 12pt.
@@ -121,8 +135,19 @@ public class Renderer {
         this.title = title;
     }
 
+    /**
+     * Returns the in-memory cache used by <code>loadResource</code>, e.g. to
+     * change its byte budget.
+     * @return
+     */
+    public static ResourceCache getResourceCache() {
+        return resourceCache;
+    }
+
     /**
      * Load a resource from the specified path for the current document context.
+     * Resources are shared through an in-memory cache, so the returned array
+     * must not be modified.
      * @param path
      * @return
      */
@@ -130,12 +155,81 @@ public class Renderer {
         // We don't care about what response we get, just return the data (or
         // null).
         int[] response = new int[1];
-        return IOUtility.readFile(IOUtility.getURL(path, documentContext), response);
+        return resourceCache.readFile(IOUtility.getURL(path, documentContext), response);
+    }
+
+    /**
+     * Loads a resource from the specified path for the current document
+     * context in the background, through the same cache as
+     * <code>loadResource</code>. The listener is given the resource, which
+     * holds an error code if it couldn't be loaded, on the fetching thread.
+     * @param path
+     * @param priority
+     * @param listener
+     * @return the scheduled fetch, e.g. to raise its priority once visible
+     */
+    public FetchScheduler.Fetch<Resource> loadResourceLater(String path, FetchPriority priority, FetchListener<Resource> listener) {
+        final URL url = IOUtility.getURL(path, documentContext);
+        FetchScheduler.Fetch<Resource> fetch = IOUtility.getFetchScheduler().submit(FetchScheduler.getHost(url), priority,
+                new Callable<Resource>() {
+                    public Resource call() {
+                        return resourceCache.read(url);
+                    }
+                }, listener);
+        synchronized (pendingFetches) {
+            pendingFetches.add(fetch);
+        }
+        return fetch;
+    }
+
+    /**
+     * Returns the priority to load the next resource of the document with.
+     * Resources near the top of the document are likely to be visible first.
+     * @return
+     */
+    public FetchPriority nextResourcePriority() {
+        resourceCount++;
+        if (resourceCount <= EAGER_RESOURCE_COUNT)
+            return FetchPriority.VISIBLE;
+        return FetchPriority.SPECULATIVE;
+    }
+
+    /**
+     * Waits for every background resource load of the current document to
+     * finish, e.g. to time a complete page load.
+     */
+    public void waitForResources() {
+        List<FetchScheduler.Fetch<Resource>> fetches;
+        synchronized (pendingFetches) {
+            fetches = new ArrayList<FetchScheduler.Fetch<Resource>>(pendingFetches);
+        }
+        for (FetchScheduler.Fetch<Resource> fetch : fetches) {
+            try {
+                fetch.get();
+            } catch (CancellationException ex) {
+                // Nothing more to wait for.
+            } catch (ExecutionException ex) {
+                // Failed loads are finished too.
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Cancels the background loads of the previous document that haven't
+    // started yet.
+    private void cancelPendingFetches() {
+        synchronized (pendingFetches) {
+            for (FetchScheduler.Fetch<Resource> fetch : pendingFetches)
+                fetch.cancel(false);
+            pendingFetches.clear();
+        }
     }
 
     // Loads the set of TagRenderers to render TagDocumentNodes.
     private void loadRenderers() {
-        rendererMap = new HashMap<String, TagRenderer>();
+        renderers = new TagRenderer[TagSymbolTable.size()];
 
         Properties rendererMapProperties = new Properties();
         try {
@@ -193,10 +287,14 @@ public class Renderer {
                     // Cast to a TagRenderer.
                     TagRenderer tagRenderer = TagRenderer.class.cast(newInstance);
 
-                    // If everything worked, add the renderer to the map for the
-                    // tag type specified in the properties entry.
+                    // If everything worked, add the renderer for the tag type
+                    // specified in the properties entry, registering the type
+                    // if it's new.
                     if (tagRenderer != null) {
-                        rendererMap.put(entry.getKey().toString(), tagRenderer);
+                        int id = TagSymbolTable.register(entry.getKey().toString());
+                        if (id >= renderers.length)
+                            renderers = Arrays.copyOf(renderers, id+1);
+                        renderers[id] = tagRenderer;
                         loadedCount++;
                     }
                     
@@ -225,6 +323,8 @@ public class Renderer {
         this.documentContext = documentContext;
 
         // Reset all document properties.
+        cancelPendingFetches();
+        resourceCount = 0;
         headingNumbering.clear();
         title = null;
         foundConformanceError = false;
@@ -259,11 +359,17 @@ public class Renderer {
         }
     }
 
-    // Gets the TagRenderer instance for the tag node from the mapping.
+    // Gets the TagRenderer instance for the tag node by its type id.
     // If there isn't one, uses the unrecognisedTagRenderer, as set in the
     // constructor.
     private TagRenderer getTagRenderer(TagDocumentNode tagNode) {
-        TagRenderer renderer = rendererMap.get(tagNode.getType());
+        int id = tagNode.getTypeId();
+        // Nodes made before their type was registered are only known by name.
+        if (id == TagSymbolTable.UNKNOWN)
+            id = TagSymbolTable.lookup(tagNode.getType());
+        TagRenderer renderer = null;
+        if (id != TagSymbolTable.UNKNOWN && id < renderers.length)
+            renderer = renderers[id];
         if (renderer == null)
             return unrecognisedTagRenderer;
         return renderer;
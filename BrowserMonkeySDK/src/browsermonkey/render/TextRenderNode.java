@@ -24,7 +24,6 @@ public class TextRenderNode extends RenderNode {
     private Map<Rectangle, TextLayout> textLayouts;
 
     private static FontRenderContext fontRenderContext;
-    private static Map<String, Character> characterEntities;
 
     static {
         // Set up the font render context for text measuring and rendering.
@@ -51,27 +50,6 @@ public class TextRenderNode extends RenderNode {
         }
 
         fontRenderContext = new FontRenderContext(null, aaHint, fmHint);
-
-        // Set up the character entities map.
-        characterEntities = new HashMap<String, Character>();
-        characterEntities.put("nbsp", '\u00A0');
-        characterEntities.put("pound", '£');
-        characterEntities.put("copy", '©');
-        characterEntities.put("reg", '®');
-        characterEntities.put("trade", '™');
-        characterEntities.put("quot", '"');
-        characterEntities.put("apos", '\'');
-        characterEntities.put("amp", '&');
-        characterEntities.put("lt", '<');
-        characterEntities.put("gt", '>');
-        characterEntities.put("bull", '•');
-        characterEntities.put("raquo", '▼');
-        characterEntities.put("para", '¶');
-        characterEntities.put("frac14", '¼');
-        characterEntities.put("frac12", '½');
-        characterEntities.put("frac34", '¾');
-        characterEntities.put("ntilde", 'ñ');
-        characterEntities.put("hellip", '…');
     }
 
     public TextRenderNode(Linkable linker) {
@@ -105,13 +83,21 @@ public class TextRenderNode extends RenderNode {
         });
     }
 
+    // Returns the screen resolution in dots per inch, or a typical resolution
+    // when rendering without a display, e.g. in benchmarks.
+    private static int getScreenResolution() {
+        if (GraphicsEnvironment.isHeadless())
+            return 96;
+        return Toolkit.getDefaultToolkit().getScreenResolution();
+    }
+
     @Override
     public void setZoomLevel(float zoomLevel) {
         // Don't zoom if empty.
         if (!isEmpty()) {
             // Get the screen resolution and perform dpi correction, and use this
             // with the zoom level to set the size transform of the text.
-            int screenResolution = Toolkit.getDefaultToolkit().getScreenResolution();
+            int screenResolution = getScreenResolution();
             double dpiCorrection = screenResolution/72d;
             text.addAttribute(TextAttribute.TRANSFORM, new TransformAttribute(AffineTransform.getScaleInstance(zoomLevel*dpiCorrection, zoomLevel*dpiCorrection)));
         }
@@ -182,9 +168,12 @@ public class TextRenderNode extends RenderNode {
     }
 
     /**
-     * Adds some text to the node with the given formatting.
+     * Adds some text to the node with the given formatting. The text is
+     * displayed as it is, so should already have its whitespace normalised
+     * and its entities decoded, as the parser does for text nodes.
      * @param newText
      * @param formatting
+     * @see browsermonkey.document.TextNormaliser
      */
     public void addText(String newText, Map<Attribute,Object> formatting) {
         if (newText.isEmpty())
@@ -227,51 +216,7 @@ public class TextRenderNode extends RenderNode {
         if (newText.isEmpty())
             return;
 
-        // Trim line breaks to a single \n character.
-        newText = newText.replaceAll("\\r\\n|\\n\\r|\\r|\\n", "\n");
-
-        // Append the input string into newText, while replacing any character
-        // entities.
-        int currentPos = 0;
-        int findPos;
-        while ((findPos = newText.indexOf('&', currentPos)) != -1) {
-            int endEntityIndex = newText.indexOf(';', findPos+1);
-            if (endEntityIndex == -1)
-                break;
-            builder.append(newText.substring(currentPos, findPos));
-            boolean entityReplaced = false;
-            String entityText = newText.substring(findPos+1, endEntityIndex).toLowerCase();
-            if (entityText.charAt(0) == '#') {
-                try {
-                    int value;
-                    if (entityText.charAt(1) == 'x')
-                        value = Integer.parseInt(entityText.substring(2), 16);
-                    else
-                        value = Integer.parseInt(entityText.substring(1));
-                    builder.append((char)value);
-                    entityReplaced = true;
-                } catch (NumberFormatException ex) {
-                    entityReplaced = false;
-                }
-            }
-            else {
-                Character character = characterEntities.get(entityText);
-                if (character != null) {
-                    builder.append(character);
-                    entityReplaced = true;
-                }
-            }
-
-            if (entityReplaced)
-                currentPos = endEntityIndex+1;
-            else {
-                currentPos = findPos+1;
-                builder.append('&');
-            }
-        }
-
-        // Append the rest of the string.
-        builder.append(newText.substring(currentPos));
+        builder.append(newText);
 
         // Add a run end index as the end of the whole string.
         endIndices.add(builder.length());
@@ -0,0 +1,18 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * Reads entries of site archives straight from their mappings.
+ * @author Paul Calcraft
+ */
+public class ArchiveResourceProvider implements ResourceProvider {
+    public boolean canLoad(URL url) {
+        return url.getProtocol().equals(SiteArchive.PROTOCOL);
+    }
+
+    public Resource load(URL url) throws IOException {
+        return new Resource(url, URLConnection.guessContentTypeFromName(url.getPath()), SiteArchive.read(url));
+    }
+}
@@ -68,6 +68,15 @@ public class BrowserMonkeyLogger {
             logger.info(status);
     }
 
+    /**
+     * Submits a progress message to the alert logger only, so frequent updates
+     * reach the status bar without filling the log file.
+     * @param progress
+     */
+    public static void progress(String progress) {
+        alertLogger.info(progress);
+    }
+
     /**
      * Submits a notice to the alert logger and main logger.
      * Notices are handled by a GUI notification dialog in the BrowserMonkey
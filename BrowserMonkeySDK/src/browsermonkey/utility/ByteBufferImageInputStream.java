@@ -0,0 +1,53 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.nio.*;
+import javax.imageio.stream.*;
+
+/**
+ * An image input stream reading straight from a buffer, such as a spilled or
+ * memory-mapped download. <code>ImageIO</code> would otherwise copy a plain
+ * input stream into its own memory or disk cache so it can seek.
+ * @author Paul Calcraft
+ */
+public class ByteBufferImageInputStream extends ImageInputStreamImpl {
+    private ByteBuffer buffer;
+
+    /**
+     * Constructs a stream over the remaining bytes of the buffer, which is not
+     * itself modified.
+     * @param buffer
+     */
+    public ByteBufferImageInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= buffer.limit())
+            return -1;
+        return buffer.get((int)streamPos++) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (len == 0)
+            return 0;
+        if (streamPos >= buffer.limit())
+            return -1;
+        len = (int)Math.min(len, buffer.limit()-streamPos);
+        buffer.position((int)streamPos);
+        buffer.get(b, off, len);
+        streamPos += len;
+        return len;
+    }
+
+    @Override
+    public long length() {
+        return buffer.limit();
+    }
+}
@@ -0,0 +1,71 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * An input stream reading the remaining bytes of a buffer, e.g. so a mapped
+ * file can be read by stream based decoders without copying it to the heap.
+ * @author Paul Calcraft
+ */
+public class ByteBufferInputStream extends InputStream {
+    private ByteBuffer buffer;
+
+    /**
+     * Constructs a stream over the remaining bytes of the buffer. The stream
+     * reads through its own view, so the buffer's position is unaffected.
+     * @param buffer
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining())
+            return -1;
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0)
+            return 0;
+        if (!buffer.hasRemaining())
+            return -1;
+        len = Math.min(len, buffer.remaining());
+        buffer.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position()+skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        buffer.mark();
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        try {
+            buffer.reset();
+        } catch (InvalidMarkException ex) {
+            throw new IOException("Stream not marked.");
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Decodes a document's bytes into characters incrementally. The charset is
+ * taken from a byte order mark, the Content-Type header, or a meta charset
+ * declaration near the start of the document, in that order of precedence.
+ * Characters are decoded a chunk at a time into a reused buffer, so no decoded
+ * copy of the whole document is made here. The bytes can also be read from a
+ * stream as they are decoded, such as a document still being downloaded.
+ * @author Paul Calcraft
+ */
+public class DecodingReader extends Reader {
+    // Number of characters decoded at a time.
+    private static final int CHUNK_SIZE = 8192;
+    // How far into the document to look for a meta charset declaration.
+    private static final int SNIFF_LENGTH = 1024;
+
+    private ByteBuffer input;
+    private InputStream stream;
+    private Charset charset;
+    private CharsetDecoder decoder;
+    private CharBuffer chunk;
+    private boolean inputDecoded;
+    private boolean flushed;
+
+    /**
+     * Constructs a reader over the remaining bytes of a buffer.
+     * @param input the document's bytes
+     * @param contentType the Content-Type header value, or null if unknown
+     */
+    public DecodingReader(ByteBuffer input, String contentType) {
+        this.input = input.duplicate();
+        charset = detectCharset(this.input, contentType);
+        skipByteOrderMark(this.input);
+
+        // Replace malformed input, as String decoding does.
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        chunk = CharBuffer.allocate(CHUNK_SIZE);
+        chunk.flip();
+    }
+
+    /**
+     * Constructs a reader over the bytes read from a stream, which are read a
+     * block at a time as they're decoded. Only the start of the document,
+     * needed to detect its charset, is read here.
+     * @param stream the document's bytes
+     * @param contentType the Content-Type header value, or null if unknown
+     * @throws IOException if the start of the document can't be read
+     */
+    public DecodingReader(InputStream stream, String contentType) throws IOException {
+        this.stream = stream;
+        input = ByteBuffer.allocate(Math.max(CHUNK_SIZE, SNIFF_LENGTH));
+        while (input.position() < SNIFF_LENGTH && this.stream != null)
+            readInput();
+        input.flip();
+        charset = detectCharset(input, contentType);
+        skipByteOrderMark(input);
+
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        chunk = CharBuffer.allocate(CHUNK_SIZE);
+        chunk.flip();
+    }
+
+    /**
+     * Returns the charset the document is being decoded with.
+     * @return
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        if (!chunk.hasRemaining() && !decodeChunk())
+            return -1;
+
+        int count = Math.min(length, chunk.remaining());
+        chunk.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input = null;
+        if (stream != null)
+            stream.close();
+    }
+
+    // Decodes the next chunk of characters, returning false if there are no
+    // more.
+    private boolean decodeChunk() throws IOException {
+        chunk.clear();
+        while (chunk.position() == 0 && !flushed) {
+            if (!inputDecoded && decoder.decode(input, chunk, stream == null).isUnderflow()) {
+                // Read more bytes if there are any, otherwise finish.
+                if (stream == null) {
+                    inputDecoded = true;
+                } else {
+                    input.compact();
+                    readInput();
+                    input.flip();
+                }
+            }
+            if (inputDecoded && decoder.flush(chunk).isUnderflow())
+                flushed = true;
+        }
+        chunk.flip();
+        return chunk.hasRemaining();
+    }
+
+    // Reads more bytes from the stream into the input buffer, which is being
+    // filled, clearing the stream at its end.
+    private void readInput() throws IOException {
+        int read = stream.read(input.array(), input.arrayOffset()+input.position(), input.remaining());
+        if (read == -1)
+            stream = null;
+        else
+            input.position(input.position()+read);
+    }
+
+    /**
+     * Works out the charset of a document from its byte order mark, its
+     * Content-Type or a meta charset declaration. Falls back to the platform
+     * default charset.
+     * @param data the document's bytes, which are not consumed
+     * @param contentType the Content-Type header value, or null if unknown
+     * @return
+     */
+    public static Charset detectCharset(ByteBuffer data, String contentType) {
+        Charset charset = getByteOrderMarkCharset(data);
+        if (charset != null)
+            return charset;
+
+        charset = lookupCharset(getCharsetParameter(contentType));
+        if (charset != null)
+            return charset;
+
+        charset = lookupCharset(sniffMetaCharset(data));
+        if (charset != null) {
+            // A document that can be read as ASCII to find its meta tag can't
+            // really be UTF-16.
+            if (charset.name().startsWith("UTF-16"))
+                return Charset.forName("UTF-8");
+            return charset;
+        }
+
+        return Charset.defaultCharset();
+    }
+
+    private static Charset getByteOrderMarkCharset(ByteBuffer data) {
+        if (startsWith(data, 0xEF, 0xBB, 0xBF))
+            return Charset.forName("UTF-8");
+        if (startsWith(data, 0xFE, 0xFF))
+            return Charset.forName("UTF-16BE");
+        if (startsWith(data, 0xFF, 0xFE))
+            return Charset.forName("UTF-16LE");
+        return null;
+    }
+
+    // Moves the buffer past any byte order mark, which the UTF-16BE/LE and
+    // UTF-8 decoders would otherwise decode as a character.
+    private static void skipByteOrderMark(ByteBuffer data) {
+        if (startsWith(data, 0xEF, 0xBB, 0xBF))
+            data.position(data.position()+3);
+        else if (startsWith(data, 0xFE, 0xFF) || startsWith(data, 0xFF, 0xFE))
+            data.position(data.position()+2);
+    }
+
+    private static boolean startsWith(ByteBuffer data, int... bytes) {
+        if (data.remaining() < bytes.length)
+            return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if ((data.get(data.position()+i) & 0xFF) != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Extracts the charset parameter from a Content-Type header value.
+    private static String getCharsetParameter(String contentType) {
+        if (contentType == null)
+            return null;
+        return getCharsetValue(contentType.toLowerCase());
+    }
+
+    // Looks for a charset declared in a meta tag near the start of the
+    // document, e.g. <meta charset="utf-8"> or <meta http-equiv="Content-Type"
+    // content="text/html; charset=utf-8">.
+    private static String sniffMetaCharset(ByteBuffer data) {
+        // Charsets are ASCII compatible up to the meta tag, so read the bytes
+        // as lowercase ASCII characters.
+        int length = Math.min(data.remaining(), SNIFF_LENGTH);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char c = (char)(data.get(data.position()+i) & 0xFF);
+            builder.append(Character.toLowerCase(c));
+        }
+        String prefix = builder.toString();
+
+        int meta = prefix.indexOf("<meta");
+        while (meta != -1) {
+            int metaEnd = prefix.indexOf('>', meta);
+            if (metaEnd == -1)
+                metaEnd = prefix.length();
+            String value = getCharsetValue(prefix.substring(meta, metaEnd));
+            if (value != null)
+                return value;
+            meta = prefix.indexOf("<meta", metaEnd);
+        }
+        return null;
+    }
+
+    // Finds the value after "charset=" in lowercase text, or null if none.
+    private static String getCharsetValue(String text) {
+        int charsetIndex = text.indexOf("charset");
+        if (charsetIndex == -1)
+            return null;
+        int i = charsetIndex+"charset".length();
+        while (i < text.length() && Character.isWhitespace(text.charAt(i)))
+            i++;
+        if (i == text.length() || text.charAt(i) != '=')
+            return null;
+        i++;
+        while (i < text.length() && (Character.isWhitespace(text.charAt(i)) || text.charAt(i) == '"' || text.charAt(i) == '\''))
+            i++;
+        int start = i;
+        while (i < text.length() && isCharsetNameCharacter(text.charAt(i)))
+            i++;
+        if (i == start)
+            return null;
+        return text.substring(start, i);
+    }
+
+    private static boolean isCharsetNameCharacter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == ':';
+    }
+
+    // Returns the named charset, or null if it is unknown or unsupported.
+    private static Charset lookupCharset(String name) {
+        if (name == null)
+            return null;
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException ex) {
+            BrowserMonkeyLogger.warning("Unsupported charset "+name+" declared.");
+            return null;
+        }
+    }
+}
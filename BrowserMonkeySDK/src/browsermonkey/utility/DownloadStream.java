@@ -0,0 +1,186 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A stream of a resource's bytes as they arrive, so they can be decoded and
+ * parsed while the rest is still downloading. The download is fed in by the
+ * fetch reading it, which waits if too much is buffered and not yet read.
+ * Resources that aren't downloaded a block at a time, such as local files
+ * and cached responses, are streamed all at once when read.
+ * <p>
+ * The stream must be closed, even if it isn't read to the end, so the
+ * download isn't left waiting.
+ * @author Paul Calcraft
+ * @see ResourceLoader#stream(URL, FetchPriority)
+ */
+public class DownloadStream extends InputStream {
+    // Most bytes buffered before the download waits for them to be read.
+    private static final int MAXIMUM_BUFFERED = 256*1024;
+
+    private URL url;
+    private FetchScheduler.Fetch<Resource> fetch;
+    private LinkedList<ByteBuffer> blocks = new LinkedList<ByteBuffer>();
+    private long buffered;
+    private boolean started;
+    private boolean finished;
+    private boolean closed;
+    private String contentType;
+    private Resource resource;
+
+    DownloadStream(URL url) {
+        this.url = url;
+    }
+
+    void setFetch(FetchScheduler.Fetch<Resource> fetch) {
+        this.fetch = fetch;
+    }
+
+    // Called by the download when it has its response and is about to read
+    // the body.
+    synchronized void start(String contentType) {
+        started = true;
+        this.contentType = contentType;
+        notifyAll();
+    }
+
+    // Called by the download with each block of the body as it's read.
+    synchronized void write(byte[] data, int offset, int length) {
+        if (length == 0)
+            return;
+        boolean interrupted = false;
+        while (buffered >= MAXIMUM_BUFFERED && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (closed)
+            return;
+        blocks.add(ByteBuffer.wrap(Arrays.copyOfRange(data, offset, offset+length)));
+        buffered += length;
+        notifyAll();
+    }
+
+    // Called with the result once the read is complete. If the body wasn't
+    // streamed as it was read, it's streamed now.
+    synchronized void finish(Resource resource) {
+        this.resource = resource;
+        if (!started) {
+            contentType = resource.getContentType();
+            if (resource.getError() == 0 && !closed) {
+                blocks.add(resource.getData().duplicate());
+                buffered += resource.getData().remaining();
+            }
+        }
+        finished = true;
+        notifyAll();
+    }
+
+    public URL getURL() {
+        return url;
+    }
+
+    /**
+     * Waits until the body starts to arrive, or the read fails.
+     * @return true if there is a body to read
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public synchronized boolean waitForBody() throws InterruptedIOException {
+        while (!started && !finished)
+            await();
+        return started || resource.getError() == 0;
+    }
+
+    /**
+     * Returns the Content-Type the resource is being served with, once the
+     * body has started to arrive.
+     * @return the header value, or null if unknown
+     */
+    public synchronized String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Waits for the read to complete and returns its result, which says
+     * whether the whole body was read.
+     * @return
+     */
+    public Resource getResource() {
+        try {
+            return fetch.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return new Resource(url, 404);
+        } catch (CancellationException ex) {
+            return new Resource(url, 404);
+        } catch (ExecutionException ex) {
+            BrowserMonkeyLogger.warning("Loading "+url+" failed: "+ex.getCause());
+            return new Resource(url, 404);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        if (read(single, 0, 1) == -1)
+            return -1;
+        return single[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        while (blocks.isEmpty() && !finished && !closed)
+            await();
+        if (closed)
+            throw new IOException("Stream closed");
+        if (blocks.isEmpty())
+            return -1;
+
+        ByteBuffer block = blocks.getFirst();
+        int count = Math.min(length, block.remaining());
+        block.get(buffer, offset, count);
+        if (!block.hasRemaining())
+            blocks.removeFirst();
+        buffered -= count;
+        notifyAll();
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        if (blocks.isEmpty())
+            return 0;
+        return (int)Math.min(buffered, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Stops reading the stream, discarding anything still to arrive. The
+     * download itself carries on, so its result is still cached.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        blocks.clear();
+        buffered = 0;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for "+url);
+        }
+    }
+}
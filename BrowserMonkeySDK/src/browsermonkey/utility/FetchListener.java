@@ -0,0 +1,21 @@
+package browsermonkey.utility;
+
+/**
+ * Receives the result of a fetch scheduled with <code>FetchScheduler</code>.
+ * @author Paul Calcraft
+ */
+public interface FetchListener<V> {
+    /**
+     * Called on the fetching thread once the fetch completes.
+     * @param result
+     */
+    void fetched(V result);
+
+    /**
+     * Called instead of <code>fetched</code> if the fetch is cancelled, on the
+     * cancelling thread, or fails with an exception, on the fetching thread.
+     * @param cause a <code>CancellationException</code> if the fetch was
+     * cancelled, otherwise the exception it failed with
+     */
+    void failed(Throwable cause);
+}
@@ -0,0 +1,22 @@
+package browsermonkey.utility;
+
+/**
+ * The priorities fetches are scheduled with by <code>FetchScheduler</code>,
+ * most urgent first.
+ * @author Paul Calcraft
+ */
+public enum FetchPriority {
+    /**
+     * For the main document being navigated to.
+     */
+    DOCUMENT,
+    /**
+     * For resources in or near the visible part of the page.
+     */
+    VISIBLE,
+    /**
+     * For resources that may be needed later, e.g. images further down the
+     * page.
+     */
+    SPECULATIVE
+}
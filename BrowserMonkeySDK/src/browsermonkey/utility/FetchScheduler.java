@@ -0,0 +1,297 @@
+package browsermonkey.utility;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs fetches on a pool of background threads, most urgent first. Fetches of
+ * the same priority run in the order they were submitted, and no more than a
+ * set number run at once for any one host, so a page's resources download in
+ * parallel without flooding a server. Documents are exempt from the limit, so
+ * a navigation never waits behind the resources of the page it replaces.
+ * Queue depth and the time fetches spend waiting are recorded for each
+ * priority.
+ * @author Paul Calcraft
+ */
+public class FetchScheduler {
+    /**
+     * A scheduled fetch, which can be waited on, cancelled or given a new
+     * priority while it is still queued.
+     */
+    public class Fetch<V> extends FutureTask<V> {
+        private String host;
+        private FetchPriority priority;
+        private long sequence;
+        private long submitted;
+        private FetchListener<V> listener;
+
+        private Fetch(Callable<V> task, String host, FetchPriority priority, FetchListener<V> listener) {
+            super(task);
+            this.host = host;
+            this.priority = priority;
+            this.listener = listener;
+        }
+
+        public FetchPriority getPriority() {
+            synchronized (FetchScheduler.this) {
+                return priority;
+            }
+        }
+
+        /**
+         * Changes the priority of the fetch, if it hasn't started yet.
+         * @param priority
+         */
+        public void setPriority(FetchPriority priority) {
+            reprioritise(this, priority);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            dequeue(this);
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                if (listener != null)
+                    listener.failed(new CancellationException());
+                return;
+            }
+            try {
+                V result = get();
+                if (listener != null)
+                    listener.fetched(result);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                BrowserMonkeyLogger.warning("Fetch from "+host+" failed: "+ex.getCause());
+                if (listener != null)
+                    listener.failed(ex.getCause());
+            }
+        }
+    }
+
+    // Orders queued fetches by priority, then by submission.
+    private final TreeSet<Fetch<?>> queue = new TreeSet<Fetch<?>>(new Comparator<Fetch<?>>() {
+        public int compare(Fetch<?> a, Fetch<?> b) {
+            int order = a.priority.compareTo(b.priority);
+            if (order != 0)
+                return order;
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    });
+    // Number of fetches running for each host.
+    private final Map<String, Integer> activeFetches = new HashMap<String, Integer>();
+    private int maximumPerHost;
+    private long nextSequence;
+    private int activeCount;
+    private int maximumQueueDepth;
+    // Fetches started and their total and longest waits, by priority.
+    private int[] startedCounts = new int[FetchPriority.values().length];
+    private long[] totalWaits = new long[FetchPriority.values().length];
+    private long[] maximumWaits = new long[FetchPriority.values().length];
+
+    /**
+     * Constructs a scheduler and starts its threads.
+     * @param threadCount the number of fetches that can run at once
+     * @param maximumPerHost the number of fetches other than documents that
+     * can run at once for any one host
+     */
+    public FetchScheduler(int threadCount, int maximumPerHost) {
+        this.maximumPerHost = maximumPerHost;
+        for (int i = 0; i < threadCount; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    runFetches();
+                }
+            }, "Fetcher-"+i);
+            // Don't keep the browser running for unfinished downloads.
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Schedules a fetch.
+     * @param host the host the fetch is from, for the per-host limit
+     * @param priority
+     * @param task the fetch to run
+     * @param listener notified of the result, may be null
+     * @return the scheduled fetch
+     */
+    public <V> Fetch<V> submit(String host, FetchPriority priority, Callable<V> task, FetchListener<V> listener) {
+        Fetch<V> fetch = new Fetch<V>(task, host, priority, listener);
+        synchronized (this) {
+            fetch.sequence = nextSequence++;
+            fetch.submitted = System.nanoTime();
+            queue.add(fetch);
+            maximumQueueDepth = Math.max(maximumQueueDepth, queue.size());
+            notifyAll();
+        }
+        return fetch;
+    }
+
+    /**
+     * Schedules reading a URL with <code>IOUtility.readResource</code>.
+     * @param url
+     * @param priority
+     * @param listener notified of the result, may be null
+     * @return the scheduled fetch
+     */
+    public Fetch<Resource> submit(final URL url, FetchPriority priority, FetchListener<Resource> listener) {
+        return submit(getHost(url), priority, new Callable<Resource>() {
+            public Resource call() {
+                return IOUtility.readResource(url);
+            }
+        }, listener);
+    }
+
+    /**
+     * Returns the key the per-host limit applies to for a URL.
+     * @param url may be null
+     * @return
+     */
+    public static String getHost(URL url) {
+        if (url == null)
+            return "";
+        return url.getHost().toLowerCase()+":"+url.getPort();
+    }
+
+    private synchronized void reprioritise(Fetch<?> fetch, FetchPriority priority) {
+        if (fetch.priority == priority)
+            return;
+        // Only reorder the fetch if it's still waiting.
+        boolean queued = queue.remove(fetch);
+        fetch.priority = priority;
+        if (queued) {
+            queue.add(fetch);
+            notifyAll();
+        }
+    }
+
+    private synchronized void dequeue(Fetch<?> fetch) {
+        queue.remove(fetch);
+    }
+
+    // Takes the most urgent queued fetch that is a document or whose host is
+    // below its limit.
+    private Fetch<?> takeNext() {
+        for (Fetch<?> fetch : queue) {
+            Integer active = activeFetches.get(fetch.host);
+            if (fetch.priority == FetchPriority.DOCUMENT || active == null || active < maximumPerHost) {
+                queue.remove(fetch);
+                activeFetches.put(fetch.host, active == null ? 1 : active+1);
+                return fetch;
+            }
+        }
+        return null;
+    }
+
+    // The loop run by each thread.
+    private void runFetches() {
+        while (true) {
+            Fetch<?> fetch;
+            synchronized (this) {
+                while ((fetch = takeNext()) == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                activeCount++;
+                int index = fetch.priority.ordinal();
+                long wait = System.nanoTime()-fetch.submitted;
+                startedCounts[index]++;
+                totalWaits[index] += wait;
+                maximumWaits[index] = Math.max(maximumWaits[index], wait);
+            }
+
+            try {
+                fetch.run();
+            } finally {
+                synchronized (this) {
+                    activeCount--;
+                    int active = activeFetches.get(fetch.host)-1;
+                    if (active == 0)
+                        activeFetches.remove(fetch.host);
+                    else
+                        activeFetches.put(fetch.host, active);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of fetches waiting to run.
+     * @return
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the most fetches that have been waiting to run at once.
+     * @return
+     */
+    public synchronized int getMaximumQueueDepth() {
+        return maximumQueueDepth;
+    }
+
+    /**
+     * Returns the number of fetches running.
+     * @return
+     */
+    public synchronized int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * Returns the number of fetches of a priority that have started.
+     * @param priority
+     * @return
+     */
+    public synchronized int getStartedCount(FetchPriority priority) {
+        return startedCounts[priority.ordinal()];
+    }
+
+    /**
+     * Returns the average time fetches of a priority waited before starting.
+     * @param priority
+     * @return the time in milliseconds
+     */
+    public synchronized double getAverageWait(FetchPriority priority) {
+        int index = priority.ordinal();
+        if (startedCounts[index] == 0)
+            return 0;
+        return totalWaits[index]/1e6/startedCounts[index];
+    }
+
+    /**
+     * Returns the longest time a fetch of a priority waited before starting.
+     * @param priority
+     * @return the time in milliseconds
+     */
+    public synchronized double getMaximumWait(FetchPriority priority) {
+        return maximumWaits[priority.ordinal()]/1e6;
+    }
+
+    /**
+     * Describes the queue and wait times, e.g. for logging.
+     * @return
+     */
+    public synchronized String getStatistics() {
+        StringBuilder statistics = new StringBuilder();
+        statistics.append("queue depth ").append(queue.size()).append(" (max ").append(maximumQueueDepth)
+                .append("), active ").append(activeCount);
+        for (FetchPriority priority : FetchPriority.values()) {
+            statistics.append(String.format(", %s %d started, wait avg %.1f ms max %.1f ms", priority.name().toLowerCase(),
+                    getStartedCount(priority), getAverageWait(priority), getMaximumWait(priority)));
+        }
+        return statistics.toString();
+    }
+}
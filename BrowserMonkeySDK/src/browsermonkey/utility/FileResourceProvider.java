@@ -0,0 +1,21 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * Reads local files through their channels, memory-mapping large ones.
+ * @author Paul Calcraft
+ */
+public class FileResourceProvider implements ResourceProvider {
+    public boolean canLoad(URL url) {
+        return IOUtility.getLocalFile(url) != null;
+    }
+
+    public Resource load(URL url) throws IOException {
+        File file = IOUtility.getLocalFile(url);
+        if (file == null)
+            throw new FileNotFoundException("No file for "+url);
+        return IOUtility.readLocalFile(file, url);
+    }
+}
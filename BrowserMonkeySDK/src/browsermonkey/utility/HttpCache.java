@@ -0,0 +1,530 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A persistent on-disk cache of HTTP responses, keyed by normalised URL.
+ * Stores response bodies along with the validators and freshness information
+ * needed to revalidate them, and remembers permanent redirects. The total size
+ * of stored bodies is capped, evicting the least recently used entries first.
+ * @author Paul Calcraft
+ */
+public class HttpCache {
+    /**
+     * A single cached response or permanent redirect.
+     */
+    public static class Entry {
+        private String key;
+        private String fileName;
+        private String contentType;
+        private String eTag;
+        private String lastModified;
+        private String redirect;
+        private long expires;
+        private long size;
+
+        private Entry(String key, String fileName) {
+            this.key = key;
+            this.fileName = fileName;
+        }
+
+        /**
+         * Returns whether the entry can be used without revalidating it.
+         * @return
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+
+        /**
+         * Returns whether the entry has a validator that can be sent in a
+         * conditional request.
+         * @return
+         */
+        public boolean canRevalidate() {
+            return eTag != null || lastModified != null;
+        }
+
+        /**
+         * Returns the absolute URL this entry permanently redirects to, or null
+         * if it is a stored response.
+         * @return
+         */
+        public String getRedirect() {
+            return redirect;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns when the entry stops being fresh.
+         * @return the time, as for <code>System.currentTimeMillis</code>
+         */
+        public long getExpires() {
+            return expires;
+        }
+    }
+
+    // Heuristic freshness as a fraction of the time since last modification,
+    // used when the server gives no explicit lifetime.
+    private static final double HEURISTIC_FRACTION = 0.1;
+    // Upper bound on heuristic freshness lifetimes.
+    private static final long MAXIMUM_HEURISTIC_LIFETIME = 24*60*60*1000L;
+
+    // The ending of bodies being written, which are left behind if writing
+    // them is cut short.
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private File directory;
+    private long maximumSize;
+    private long totalSize;
+    private boolean enabled;
+    // Entries in least recently used order, loaded on first use.
+    private LinkedHashMap<String, Entry> entries;
+    private int hitCount;
+    private int missCount;
+    private int revalidatedCount;
+
+    /**
+     * Constructs a cache stored in the specified directory, which is created if
+     * it does not exist.
+     * @param directory
+     * @param maximumSize the maximum total size of stored bodies in bytes
+     */
+    public HttpCache(File directory, long maximumSize) {
+        this.directory = directory;
+        this.maximumSize = maximumSize;
+    }
+
+    public synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Moves the cache to another directory, e.g. so a benchmark can use its
+     * own, leaving the entries in the old one where they are. The entries in
+     * the new directory are loaded on first use.
+     * @param directory
+     */
+    public synchronized void setDirectory(File directory) {
+        this.directory = directory;
+        entries = null;
+        totalSize = 0;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of stale entries confirmed as unchanged by the server.
+     * @return
+     */
+    public synchronized int getRevalidatedCount() {
+        return revalidatedCount;
+    }
+
+    public synchronized long getTotalSize() {
+        ensureLoaded();
+        return totalSize;
+    }
+
+    synchronized void countHit() {
+        hitCount++;
+    }
+
+    synchronized void countMiss() {
+        missCount++;
+    }
+
+    synchronized void countRevalidated() {
+        revalidatedCount++;
+    }
+
+    /**
+     * Looks up the entry for a normalised URL, marking it as recently used.
+     * @param key
+     * @return the entry, or null if none is cached
+     */
+    public synchronized Entry get(String key) {
+        if (!ensureLoaded())
+            return null;
+        Entry entry = entries.get(key);
+        if (entry != null)
+            getBodyFile(entry).setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * Reads the stored body of an entry. Large bodies are memory-mapped
+     * rather than copied onto the heap.
+     * @param entry
+     * @return the body, or null if it could not be read
+     */
+    public ByteBuffer readBody(Entry entry) {
+        try {
+            return IOUtility.readFileBuffer(getBodyFile(entry));
+        } catch (IOException ex) {
+            BrowserMonkeyLogger.warning("Could not read cached body for "+entry.key+": "+ex);
+            remove(entry.key);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a response body along with the caching headers of the connection
+     * it was read from. Responses marked no-store, or that could never be
+     * reused, are not stored.
+     * @param key the normalised URL
+     * @param body
+     * @param connection the connection the body was read from
+     */
+    public synchronized void store(String key, ByteBuffer body, URLConnection connection) {
+        if (!ensureLoaded())
+            return;
+
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (hasDirective(cacheControl, "no-store") || body.remaining() > maximumSize) {
+            remove(key);
+            return;
+        }
+
+        Entry entry = new Entry(key, hash(key));
+        entry.contentType = connection.getContentType();
+        entry.eTag = connection.getHeaderField("ETag");
+        entry.lastModified = connection.getHeaderField("Last-Modified");
+        entry.expires = calculateExpiry(connection);
+
+        // Nothing to gain from an entry that is already stale and can't be
+        // revalidated.
+        if (!entry.isFresh() && !entry.canRevalidate()) {
+            remove(key);
+            return;
+        }
+
+        try {
+            writeBody(entry, body);
+            entry.size = body.remaining();
+            put(entry);
+        } catch (IOException ex) {
+            BrowserMonkeyLogger.warning("Could not write cache entry for "+key+": "+ex);
+            remove(key);
+        }
+    }
+
+    /**
+     * Stores a permanent redirect.
+     * @param key the normalised URL being redirected
+     * @param target the absolute URL redirected to
+     */
+    public synchronized void storeRedirect(String key, String target) {
+        if (!ensureLoaded())
+            return;
+
+        Entry entry = new Entry(key, hash(key));
+        entry.redirect = target;
+        entry.expires = Long.MAX_VALUE;
+        try {
+            // An empty body file keeps the redirect in the LRU ordering.
+            writeBody(entry, ByteBuffer.allocate(0));
+            put(entry);
+        } catch (IOException ex) {
+            BrowserMonkeyLogger.warning("Could not write cache entry for "+key+": "+ex);
+        }
+    }
+
+    /**
+     * Updates the freshness of an entry after the server confirmed it is
+     * unchanged with a 304 response.
+     * @param entry
+     * @param connection the connection that received the 304 response
+     */
+    public synchronized void refresh(Entry entry, URLConnection connection) {
+        String eTag = connection.getHeaderField("ETag");
+        if (eTag != null)
+            entry.eTag = eTag;
+        entry.expires = calculateExpiry(connection);
+        if (entries.containsKey(entry.key))
+            writeMetadata(entry);
+    }
+
+    /**
+     * Removes the entry for a normalised URL, if any.
+     * @param key
+     */
+    public synchronized void remove(String key) {
+        if (entries == null)
+            return;
+        Entry entry = entries.remove(key);
+        if (entry != null)
+            deleteFiles(entry);
+    }
+
+    /**
+     * Removes every entry, e.g. so a benchmark can measure cold loads.
+     */
+    public synchronized void clear() {
+        if (!ensureLoaded())
+            return;
+        for (Entry entry : entries.values())
+            deleteFiles(entry);
+        entries.clear();
+    }
+
+    // Adds an entry to the index and disk, replacing any existing one, and
+    // evicts least recently used entries until the cache fits.
+    private void put(Entry entry) {
+        Entry previous = entries.remove(entry.key);
+        if (previous != null)
+            totalSize -= previous.size;
+        writeMetadata(entry);
+        entries.put(entry.key, entry);
+        totalSize += entry.size;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (totalSize > maximumSize && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            deleteFiles(evicted);
+        }
+    }
+
+    // Writes an entry's body to a new file, then renames it over the old one.
+    // Bodies that were read may still be mapped, which they can't be if
+    // their file is truncated, so they keep the old file until they're done
+    // with it.
+    private void writeBody(Entry entry, ByteBuffer body) throws IOException {
+        File temporary = File.createTempFile(entry.fileName, TEMPORARY_SUFFIX, directory);
+        try {
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                FileChannel channel = out.getChannel();
+                ByteBuffer data = body.duplicate();
+                while (data.hasRemaining())
+                    channel.write(data);
+            } finally {
+                out.close();
+            }
+            Files.move(temporary.toPath(), getBodyFile(entry).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    private void deleteFiles(Entry entry) {
+        totalSize -= entry.size;
+        getBodyFile(entry).delete();
+        getMetadataFile(entry).delete();
+    }
+
+    private void writeMetadata(Entry entry) {
+        Properties metadata = new Properties();
+        metadata.setProperty("url", entry.key);
+        metadata.setProperty("expires", Long.toString(entry.expires));
+        metadata.setProperty("size", Long.toString(entry.size));
+        if (entry.contentType != null)
+            metadata.setProperty("contentType", entry.contentType);
+        if (entry.eTag != null)
+            metadata.setProperty("eTag", entry.eTag);
+        if (entry.lastModified != null)
+            metadata.setProperty("lastModified", entry.lastModified);
+        if (entry.redirect != null)
+            metadata.setProperty("redirect", entry.redirect);
+
+        try {
+            OutputStream out = new FileOutputStream(getMetadataFile(entry));
+            try {
+                metadata.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            BrowserMonkeyLogger.warning("Could not write cache metadata for "+entry.key+": "+ex);
+        }
+    }
+
+    // Loads the index of entries from disk if it hasn't been already. Returns
+    // false if the cache directory is unusable.
+    private boolean ensureLoaded() {
+        if (entries != null)
+            return enabled;
+
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            BrowserMonkeyLogger.warning("Could not create cache directory "+directory+", caching disabled.");
+            enabled = false;
+            return false;
+        }
+        enabled = true;
+
+        File[] temporaryFiles = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(TEMPORARY_SUFFIX);
+            }
+        });
+        for (File temporaryFile : temporaryFiles)
+            temporaryFile.delete();
+
+        File[] metadataFiles = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".properties");
+            }
+        });
+
+        // Read every entry, then add them in order of last use, as recorded
+        // by the modification time of the body file.
+        final Map<Entry, Long> lastUsed = new HashMap<Entry, Long>();
+        for (File metadataFile : metadataFiles) {
+            String fileName = metadataFile.getName();
+            fileName = fileName.substring(0, fileName.length()-".properties".length());
+            Entry entry = readMetadata(metadataFile, fileName);
+            File bodyFile = getBodyFile(entry == null ? new Entry(null, fileName) : entry);
+            if (entry == null || !bodyFile.isFile() || bodyFile.length() != entry.size) {
+                metadataFile.delete();
+                bodyFile.delete();
+                continue;
+            }
+            lastUsed.put(entry, bodyFile.lastModified());
+        }
+
+        List<Entry> loaded = new ArrayList<Entry>(lastUsed.keySet());
+        Collections.sort(loaded, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return lastUsed.get(a).compareTo(lastUsed.get(b));
+            }
+        });
+        for (Entry entry : loaded) {
+            entries.put(entry.key, entry);
+            totalSize += entry.size;
+        }
+
+        BrowserMonkeyLogger.info("Loaded "+entries.size()+" cache entries ("+(totalSize/1024)+" KB) from "+directory);
+        return true;
+    }
+
+    // Reads an entry's metadata file, returning null if it is unreadable.
+    private Entry readMetadata(File metadataFile, String fileName) {
+        Properties metadata = new Properties();
+        try {
+            InputStream in = new FileInputStream(metadataFile);
+            try {
+                metadata.load(in);
+            } finally {
+                in.close();
+            }
+            Entry entry = new Entry(metadata.getProperty("url"), fileName);
+            if (entry.key == null)
+                return null;
+            entry.expires = Long.parseLong(metadata.getProperty("expires"));
+            entry.size = Long.parseLong(metadata.getProperty("size"));
+            entry.contentType = metadata.getProperty("contentType");
+            entry.eTag = metadata.getProperty("eTag");
+            entry.lastModified = metadata.getProperty("lastModified");
+            entry.redirect = metadata.getProperty("redirect");
+            return entry;
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private File getBodyFile(Entry entry) {
+        return new File(directory, entry.fileName+".body");
+    }
+
+    private File getMetadataFile(Entry entry) {
+        return new File(directory, entry.fileName+".properties");
+    }
+
+    // Works out when a response stops being fresh from its Cache-Control,
+    // Expires and Last-Modified headers.
+    static long calculateExpiry(URLConnection connection) {
+        long now = System.currentTimeMillis();
+        String cacheControl = connection.getHeaderField("Cache-Control");
+
+        // Always revalidate no-cache responses, and never reuse no-store ones.
+        if (hasDirective(cacheControl, "no-cache") || hasDirective(cacheControl, "must-revalidate")
+                || hasDirective(cacheControl, "no-store"))
+            return now;
+
+        String maxAge = getDirectiveValue(cacheControl, "max-age");
+        if (maxAge != null) {
+            try {
+                return now + Long.parseLong(maxAge)*1000;
+            } catch (NumberFormatException ex) {
+                return now;
+            }
+        }
+
+        long expires = connection.getHeaderFieldDate("Expires", 0);
+        if (expires != 0)
+            return expires;
+
+        long lastModified = connection.getLastModified();
+        if (lastModified != 0 && lastModified < now) {
+            long lifetime = (long)((now - lastModified)*HEURISTIC_FRACTION);
+            return now + Math.min(lifetime, MAXIMUM_HEURISTIC_LIFETIME);
+        }
+
+        return now;
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        if (cacheControl == null)
+            return false;
+        for (String part : cacheControl.split(",")) {
+            part = part.trim().toLowerCase();
+            if (part.equals(directive) || part.startsWith(directive+"="))
+                return true;
+        }
+        return false;
+    }
+
+    private static String getDirectiveValue(String cacheControl, String directive) {
+        if (cacheControl == null)
+            return null;
+        for (String part : cacheControl.split(",")) {
+            part = part.trim();
+            if (part.toLowerCase().startsWith(directive+"="))
+                return part.substring(directive.length()+1).replace("\"", "").trim();
+        }
+        return null;
+    }
+
+    /**
+     * Turns a key, such as a URL, into a file name safe for any file system.
+     * @param key
+     * @return
+     */
+    public static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest)
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (Exception ex) {
+            // SHA-1 and UTF-8 are always available.
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
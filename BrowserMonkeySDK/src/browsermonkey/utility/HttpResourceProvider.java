@@ -0,0 +1,19 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * Reads http and https URLs through the persistent HTTP cache, following
+ * redirects.
+ * @author Paul Calcraft
+ */
+public class HttpResourceProvider implements ResourceProvider {
+    public boolean canLoad(URL url) {
+        return url.getProtocol().equals("http") || url.getProtocol().equals("https");
+    }
+
+    public Resource load(URL url) throws IOException {
+        return IOUtility.readHTTP(url);
+    }
+}
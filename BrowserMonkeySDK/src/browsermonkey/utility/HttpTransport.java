@@ -0,0 +1,132 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+import java.util.zip.*;
+
+/**
+ * Opens HTTP connections with consistent settings so they can be reused.
+ * Connections are kept alive and pooled per host by the platform's HTTP
+ * handler, provided every response body is read to the end and closed, which
+ * <code>release</code> does for responses that aren't otherwise read.
+ * @author Paul Calcraft
+ */
+public class HttpTransport {
+    private static int connectTimeout = Integer.getInteger("browsermonkey.connectTimeout", 10*1000);
+    private static int readTimeout = Integer.getInteger("browsermonkey.readTimeout", 30*1000);
+
+    // The platform keeps at most http.maxConnections idle connections per
+    // host (5 by default), read once when the first connection is made. Allow
+    // enough for a page's resources to be fetched in parallel.
+    static {
+        if (System.getProperty("http.keepAlive") == null)
+            System.setProperty("http.keepAlive", "true");
+        if (System.getProperty("http.maxConnections") == null)
+            System.setProperty("http.maxConnections",
+                    Integer.toString(Integer.getInteger("browsermonkey.maxConnectionsPerHost", 8)));
+    }
+
+    /**
+     * Sets the timeout for establishing new connections.
+     * @param milliseconds the timeout, or 0 to wait indefinitely
+     */
+    public static void setConnectTimeout(int milliseconds) {
+        connectTimeout = milliseconds;
+    }
+
+    public static int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the timeout for each read from an open connection.
+     * @param milliseconds the timeout, or 0 to wait indefinitely
+     */
+    public static void setReadTimeout(int milliseconds) {
+        readTimeout = milliseconds;
+    }
+
+    public static int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Opens a connection for the URL with the configured timeouts, without
+     * automatically following redirects.
+     * @param url an http or https URL
+     * @return the unconnected connection, ready for more request headers
+     * @throws IOException
+     */
+    public static HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setInstanceFollowRedirects(false);
+        // Pretend we're Mozilla so websites don't think we're an automated
+        // bot or anything.
+        connection.setRequestProperty("User-agent", "Mozilla/5.0");
+        connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        return connection;
+    }
+
+    /**
+     * Returns whether a Content-Encoding is one that <code>decode</code>
+     * inflates.
+     * @param contentEncoding the header value, may be null
+     * @return
+     */
+    public static boolean isCompressed(String contentEncoding) {
+        return contentEncoding != null
+                && (contentEncoding.equalsIgnoreCase("gzip") || contentEncoding.equalsIgnoreCase("x-gzip")
+                    || contentEncoding.equalsIgnoreCase("deflate"));
+    }
+
+    /**
+     * Wraps a response body so it is inflated as it is read, according to its
+     * Content-Encoding. Decompression happens as the bytes arrive, so no
+     * compressed copy of the body is ever held.
+     * @param body the raw response body
+     * @param contentEncoding the header value, may be null
+     * @return the decoded stream, or the body itself if it isn't compressed
+     * @throws IOException
+     */
+    public static InputStream decode(InputStream body, String contentEncoding) throws IOException {
+        if (!isCompressed(contentEncoding))
+            return body;
+        if (!contentEncoding.equalsIgnoreCase("deflate"))
+            return new GZIPInputStream(body);
+
+        // Deflate should be zlib wrapped, but some servers send raw deflate
+        // data, so check for a zlib header before choosing.
+        BufferedInputStream buffered = new BufferedInputStream(body);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        boolean zlibWrapped = first != -1 && second != -1
+                && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+        return new InflaterInputStream(buffered, new Inflater(!zlibWrapped));
+    }
+
+    /**
+     * Reads and discards whatever is left of a response body, such as an error
+     * page or redirect body, so the connection returns to the pool.
+     * @param connection a connection that has received its response
+     */
+    public static void release(HttpURLConnection connection) {
+        try {
+            InputStream body = connection.getErrorStream();
+            if (body == null)
+                body = connection.getInputStream();
+            try {
+                byte[] skipBuffer = new byte[4096];
+                while (body.read(skipBuffer) != -1)
+                    ;
+            } finally {
+                body.close();
+            }
+        } catch (IOException ex) {
+            // The connection won't be reused, which needn't be reported.
+        }
+    }
+}
@@ -2,6 +2,8 @@ package browsermonkey.utility;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 
 /**
@@ -10,23 +12,55 @@ import java.util.*;
  * @author Paul Calcraft
  */
 public class IOUtility {
+    // A cached index file lookup, valid while the directory is unmodified.
+    private static class IndexFileLookup {
+        private long directoryModified;
+        private File indexFile;
+
+        public IndexFileLookup(long directoryModified, File indexFile) {
+            this.directoryModified = directoryModified;
+            this.indexFile = indexFile;
+        }
+    }
+
+    // Index file lookups for directories, keyed by absolute directory.
+    private static final Map<File, IndexFileLookup> indexFileLookups = new HashMap<File, IndexFileLookup>();
+
     // Tries to find an appropriate index file for a given local directory.
+    // Adding, removing or renaming a file updates the directory's modification
+    // time, so lookups are cached until that changes.
     private static File getIndexFile(File directory) {
+        directory = directory.getAbsoluteFile();
+        long directoryModified = directory.lastModified();
+        synchronized (indexFileLookups) {
+            IndexFileLookup lookup = indexFileLookups.get(directory);
+            if (lookup != null && lookup.directoryModified == directoryModified)
+                return lookup.indexFile;
+        }
+
         // Use FilenameFilter to select index.htm and index.html files.
         String[] indexFiles = directory.list(new FilenameFilter() {
             public boolean accept(File dir, String name) {
                 return name.equalsIgnoreCase("index.html") || name.equalsIgnoreCase("index.htm");
             }
         });
-        // Return the first one we find, else null.
-        if (indexFiles.length > 0)
-            return new File(indexFiles[0]);
-        return null;
+        // Use the first one we find, else null.
+        File indexFile = null;
+        if (indexFiles != null && indexFiles.length > 0)
+            indexFile = new File(directory, indexFiles[0]);
+
+        synchronized (indexFileLookups) {
+            indexFileLookups.put(directory, new IndexFileLookup(directoryModified, indexFile));
+        }
+        return indexFile;
     }
 
-    // Given a local valid file path, return a URL object for it.
+    // Given a local valid file path, return a URL object for it. A site
+    // archive resolves to its index page.
     private static URL resolveFile(File file) {
         try {
+            if (SiteArchive.isArchive(file))
+                return SiteArchive.resolve(SiteArchive.getURL(file, ""));
             if (file.isDirectory())
                 file = getIndexFile(file);
             else if (!file.exists())
@@ -58,13 +92,21 @@ public class IOUtility {
                 return result;
         }
 
-        // Try to use standard URL handling to obtain the new URL.
+        // Try to use standard URL handling to obtain the new URL. Paths
+        // relative to an archive URL stay within the archive.
         try {
-            result = new URL(context, path);
+            if (context == null && path.startsWith(SiteArchive.PROTOCOL+":"))
+                result = SiteArchive.parseURL(path);
+            else
+                result = new URL(context, path);
         } catch (MalformedURLException ex) {
             return null;
         }
 
+        // Resolve archive directories to their index pages.
+        if (result.getProtocol().equals(SiteArchive.PROTOCOL))
+            return SiteArchive.resolve(result);
+
         // If we've found a file, try to resolve it in case it's a directory.
         if (result.getProtocol().equals("file")) {
             try {
@@ -80,60 +122,549 @@ public class IOUtility {
     /**
      * Tries to read a URL (local or internet) into a byte array and returns the
      * data, or null if there was an error. The error code (e.g. 404) is stored
-     * in an out parameter.
+     * in an out parameter. The array may be shared with other readers of the
+     * same resource, so must not be modified.
      * @param url the URL to attempt to open from
      * @param outErrorCode pseudo out parameter, should always have one element
      * @return
+     * @deprecated blocks the caller, use <code>getResourceLoader</code> to
+     * load resources asynchronously or <code>readResource</code>
      */
+    @Deprecated
     public static byte[] readFile(URL url, int[] outErrorCode) {
+        ByteBuffer buffer = readBuffer(url, outErrorCode);
+        if (buffer == null)
+            return null;
+        return toArray(buffer);
+    }
+
+    /**
+     * Returns the remaining bytes of a buffer as an array, which is the
+     * buffer's own array where it wraps one exactly, so must not be modified.
+     * @param buffer
+     * @return
+     */
+    public static byte[] toArray(ByteBuffer buffer) {
+        // Heap buffers wrap an exactly sized array, so only mapped files need
+        // copying out.
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length)
+            return buffer.array();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * Tries to read a URL (local or internet) into a buffer and returns it, or
+     * null if there was an error. The error code (e.g. 404) is stored in an out
+     * parameter. Large local files are memory-mapped rather than copied onto
+     * the heap.
+     * @param url the URL to attempt to open from
+     * @param outErrorCode pseudo out parameter, should always have one element
+     * @return a buffer positioned at the start of the data
+     * @deprecated blocks the caller, use <code>getResourceLoader</code> to
+     * load resources asynchronously or <code>readResource</code>
+     */
+    @Deprecated
+    public static ByteBuffer readBuffer(URL url, int[] outErrorCode) {
+        Resource resource = readResource(url);
+        if (resource.getError() != 0) {
+            outErrorCode[0] = resource.getError();
+            return null;
+        }
+        return resource.getData();
+    }
+
+    // Shares reads of the same resource that are in flight at the same time.
+    private static final RequestCoalescer requestCoalescer = new RequestCoalescer();
+
+    /**
+     * Returns the coalescer shared by all reads, e.g. to inspect how many
+     * reads it has saved.
+     * @return
+     */
+    public static RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    // Runs reads in the background, most urgent first.
+    private static final FetchScheduler fetchScheduler = new FetchScheduler(
+            Integer.getInteger("browsermonkey.fetchThreads", 16),
+            Integer.getInteger("browsermonkey.maxFetchesPerHost", 6));
+
+    /**
+     * Returns the scheduler for reading resources in the background.
+     * @return
+     */
+    public static FetchScheduler getFetchScheduler() {
+        return fetchScheduler;
+    }
+
+    // Reads resources from their sources, through the fetch scheduler.
+    private static final ResourceLoader resourceLoader = new ResourceLoader(fetchScheduler);
+
+    /**
+     * Returns the loader for reading resources asynchronously, and for adding
+     * new sources of resources.
+     * @return
+     */
+    public static ResourceLoader getResourceLoader() {
+        return resourceLoader;
+    }
+
+    /**
+     * Reads a URL like <code>readResource</code>, but through the fetch
+     * scheduler at the given priority, waiting for the result.
+     * @param url the URL to attempt to open from, may be null
+     * @param priority
+     * @return
+     */
+    public static Resource readResource(URL url, FetchPriority priority) {
+        return resourceLoader.loadAndWait(url, priority);
+    }
+
+    /**
+     * Tries to read a URL (local or internet), returning its data and content
+     * type, or the error code (e.g. 404) if it couldn't be read. Large local
+     * files are memory-mapped rather than copied onto the heap. Concurrent
+     * reads of the same resource share a single download.
+     * @param url the URL to attempt to open from, may be null
+     * @return
+     */
+    public static Resource readResource(URL url) {
         if (url == null) {
             // URL not found/parsed.
-            outErrorCode[0] = 404;
+            return new Resource(url, 404);
+        }
+        return requestCoalescer.read(url);
+    }
+
+    /**
+     * Reads a URL like <code>readResource</code>, but through the fetch
+     * scheduler at the given priority, streaming the body as it arrives.
+     * @param url the URL to attempt to open from, may be null
+     * @param priority
+     * @return the stream of the body, which must be closed
+     */
+    public static DownloadStream streamResource(URL url, FetchPriority priority) {
+        return resourceLoader.stream(url, priority);
+    }
+
+    // The stream to feed the next body read on each thread into.
+    private static final ThreadLocal<DownloadStream> downloadStreams = new ThreadLocal<DownloadStream>();
+
+    // Sets the stream the next body read on this thread is fed into, or
+    // clears it if null.
+    static void setDownloadStream(DownloadStream download) {
+        if (download == null)
+            downloadStreams.remove();
+        else
+            downloadStreams.set(download);
+    }
+
+    /**
+     * Reads a URL without sharing the read with any others in flight. Used by
+     * <code>RequestCoalescer</code>, most callers should use
+     * <code>readResource</code>.
+     * @param url the URL to attempt to open from, not null
+     * @return
+     */
+    static Resource fetchResource(URL url) {
+        return resourceLoader.read(url);
+    }
+
+    // Reads a URL through its URLConnection, for sources without a more
+    // specific provider.
+    static Resource readURLConnection(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        ByteBuffer data = readConnection(connection, url);
+        Map<String, List<String>> headers = getDecodedHeaders(connection, data);
+        if (headers.isEmpty() && connection.getContentType() != null)
+            return new Resource(url, connection.getContentType(), data);
+        return new Resource(url, HttpURLConnection.HTTP_OK, headers, data);
+    }
+
+    // Files at least this many bytes long are memory-mapped when read.
+    private static final long MAP_THRESHOLD = Long.getLong("browsermonkey.mapThreshold", 256*1024);
+
+    // Returns the local file a file: URL refers to, or null if it isn't one.
+    static File getLocalFile(URL url) {
+        if (!url.getProtocol().equals("file"))
             return null;
+        try {
+            File file = new File(url.toURI());
+            if (file.isFile())
+                return file;
+        } catch (Exception ex) {
+            // Not a plain file path, let the URL handler deal with it.
         }
-        
-        InputStream urlStream;
-        URLConnection connection;
-        ArrayList<Byte> data = new ArrayList<Byte>();
+        return null;
+    }
+
+    // Reads a local file through its channel, mapping it if it's large.
+    static Resource readLocalFile(File file, URL url) throws IOException {
+        // Log to the status bar that we're loading the file.
+        BrowserMonkeyLogger.status("Loading "+url.toString());
+        // Yield to give the UI thread a chance to update.
+        Thread.yield();
+
+        ByteBuffer buffer = readFileBuffer(file);
+
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        String contentType = URLConnection.guessContentTypeFromName(file.getName());
+        if (contentType != null)
+            headers.put("Content-Type", Collections.singletonList(contentType));
+        headers.put("Content-Length", Collections.singletonList(Integer.toString(buffer.remaining())));
+        return new Resource(url, HttpURLConnection.HTTP_OK, headers, buffer);
+    }
+
+    // Reads a file through its channel, mapping it if it's large.
+    static ByteBuffer readFileBuffer(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
         try {
-            connection = url.openConnection();
-            // Pretend we're Mozilla so websites don't think we're an automated
-            // bot or anything.
-            connection.setRequestProperty("User-agent", "Mozilla/5.0");
-            // Get the input stream from the connection.
-            urlStream = connection.getInputStream();
-
-            // Log to the status bar that we're loading the file.
-            BrowserMonkeyLogger.status("Loading "+url.toString());
-            // Yield to give the UI thread a chance to update.
-            Thread.yield();
-
-            // Read all bytes from the stream into our ArrayList.
-            int b;
-            while ((b = urlStream.read()) != -1)
-                data.add((byte)b);
-
-        } catch (SocketTimeoutException ex) {
-            // If timeout, set error code to 408.
-            outErrorCode[0] = 408;
-            return null;
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large to read: "+file);
+
+            // The mapping stays valid after the channel is closed.
+            if (size >= MAP_THRESHOLD)
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            ByteBuffer buffer = ByteBuffer.allocate((int)size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1)
+                ;
+            buffer.flip();
+            return buffer;
+        } finally {
+            in.close();
         }
-        catch (IOException ex) {
-            // If any other, assume file not found.
-            outErrorCode[0] = 404;
-            return null;
+    }
+
+    // Maximum number of redirects followed for a single read.
+    private static final int MAXIMUM_REDIRECTS = 10;
+
+    // The persistent HTTP cache, stored in the working directory like the log
+    // file, unless another directory is given.
+    private static final HttpCache httpCache = new HttpCache(
+            new File(System.getProperty("browsermonkey.cacheDirectory", "cache")),
+            Long.getLong("browsermonkey.cacheSize", 50L*1024*1024));
+
+    /**
+     * Returns the persistent HTTP cache used by <code>readFile</code>, e.g. to
+     * inspect its hit and miss counts.
+     * @return
+     */
+    public static HttpCache getHttpCache() {
+        return httpCache;
+    }
+
+    /**
+     * Normalises a URL into a String key, so equivalent addresses refer to the
+     * same cached resource. The scheme and host are lowercased, default ports
+     * and fragments are dropped and an empty path becomes "/".
+     * @param url
+     * @return
+     */
+    public static String normaliseURL(URL url) {
+        StringBuilder key = new StringBuilder();
+        key.append(url.getProtocol().toLowerCase());
+        key.append("://");
+        if (url.getHost() != null)
+            key.append(url.getHost().toLowerCase());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            key.append(':');
+            key.append(url.getPort());
         }
+        String file = url.getFile();
+        key.append(file.isEmpty() ? "/" : file);
+        return key.toString();
+    }
+
+    // Reads a URL over HTTP, serving it from the cache where possible. Stale
+    // entries are revalidated with a conditional request, and redirects are
+    // followed manually so permanent ones can be cached.
+    static Resource readHTTP(URL url) throws IOException {
+        for (int redirects = 0; redirects <= MAXIMUM_REDIRECTS; redirects++) {
+            String key = normaliseURL(url);
+            HttpCache.Entry entry = httpCache.get(key);
+
+            if (entry != null && entry.getRedirect() != null) {
+                url = new URL(entry.getRedirect());
+                continue;
+            }
+
+            if (entry != null && entry.isFresh()) {
+                ByteBuffer body = httpCache.readBody(entry);
+                if (body != null) {
+                    httpCache.countHit();
+                    return getCachedResource(url, entry, body);
+                }
+                entry = null;
+            }
+
+            HttpURLConnection connection = HttpTransport.open(url);
+            if (entry != null) {
+                if (entry.getETag() != null)
+                    connection.setRequestProperty("If-None-Match", entry.getETag());
+                if (entry.getLastModified() != null)
+                    connection.setRequestProperty("If-Modified-Since", entry.getLastModified());
+            }
+
+            int responseCode = connection.getResponseCode();
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                HttpTransport.release(connection);
+                httpCache.refresh(entry, connection);
+                ByteBuffer body = httpCache.readBody(entry);
+                if (body != null) {
+                    httpCache.countRevalidated();
+                    return getCachedResource(url, entry, body);
+                }
+                // The cached body has gone, so ask again unconditionally.
+                continue;
+            }
+
+            if (responseCode == HttpURLConnection.HTTP_MOVED_PERM
+                    || responseCode == HttpURLConnection.HTTP_MOVED_TEMP
+                    || responseCode == HttpURLConnection.HTTP_SEE_OTHER
+                    || responseCode == 307 || responseCode == 308) {
+                String location = connection.getHeaderField("Location");
+                HttpTransport.release(connection);
+                if (location == null)
+                    throw new IOException("Redirect from "+url+" has no location.");
+                URL target = new URL(url, location);
+                if (responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == 308)
+                    httpCache.storeRedirect(key, target.toString());
+                url = target;
+                continue;
+            }
+
+            httpCache.countMiss();
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                // Read the error page so the connection can be reused. The
+                // error is reported as not found, like any other failure to
+                // load, and the real status is kept for those who want it.
+                HttpTransport.release(connection);
+                return new Resource(url, 404, responseCode);
+            }
+            ByteBuffer body = readConnection(connection, url);
+            if (responseCode == HttpURLConnection.HTTP_OK)
+                httpCache.store(key, body, connection);
+            Resource resource = new Resource(url, responseCode, getDecodedHeaders(connection, body), body);
+            resource.setExpires(HttpCache.calculateExpiry(connection));
+            return resource;
+        }
+
+        throw new IOException("Too many redirects.");
+    }
+
+    // Makes the resource for a response served from the cache, fresh for as
+    // long as the cache entry is.
+    private static Resource getCachedResource(URL url, HttpCache.Entry entry, ByteBuffer body) {
+        Resource resource = new Resource(url, HttpURLConnection.HTTP_OK, getCachedHeaders(entry), body);
+        resource.setExpires(entry.getExpires());
+        return resource;
+    }
+
+    // Returns the headers of a response, describing its body as it was
+    // decoded rather than as it was sent if it was compressed.
+    private static Map<String, List<String>> getDecodedHeaders(URLConnection connection, ByteBuffer body) {
+        Map<String, List<String>> headers = connection.getHeaderFields();
+        if (!HttpTransport.isCompressed(connection.getContentEncoding()))
+            return headers;
+        headers = new HashMap<String, List<String>>(headers);
+        for (Iterator<String> names = headers.keySet().iterator(); names.hasNext();) {
+            String name = names.next();
+            if ("Content-Encoding".equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name))
+                names.remove();
+        }
+        headers.put("Content-Length", Collections.singletonList(Integer.toString(body.remaining())));
+        return headers;
+    }
+
+    // Reconstructs the headers of a response served from the cache.
+    private static Map<String, List<String>> getCachedHeaders(HttpCache.Entry entry) {
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        if (entry.getContentType() != null)
+            headers.put("Content-Type", Collections.singletonList(entry.getContentType()));
+        if (entry.getETag() != null)
+            headers.put("ETag", Collections.singletonList(entry.getETag()));
+        if (entry.getLastModified() != null)
+            headers.put("Last-Modified", Collections.singletonList(entry.getLastModified()));
+        return headers;
+    }
+
+    // Reads the whole body of an opened connection, spilling it to disk if
+    // it's very large.
+    private static ByteBuffer readConnection(URLConnection connection, URL url) throws IOException {
+        // Get the input stream from the connection, inflating it as it's read
+        // if it's compressed. The content length is then the compressed
+        // length, so it can't be used to size the buffer.
+        InputStream urlStream = connection.getInputStream();
+        int expectedLength = connection.getContentLength();
+        String contentEncoding = connection.getContentEncoding();
+        CountingInputStream compressedCounter = null;
+        if (HttpTransport.isCompressed(contentEncoding)) {
+            compressedCounter = new CountingInputStream(urlStream);
+            urlStream = compressedCounter;
+            expectedLength = -1;
+        }
+
+        // Stream the body as it's read, if it's wanted.
+        DownloadStream download = downloadStreams.get();
+        if (download != null) {
+            downloadStreams.remove();
+            download.start(connection.getContentType());
+        }
+
+        // Log to the status bar that we're loading the file.
+        BrowserMonkeyLogger.status("Loading "+url.toString());
+        // Yield to give the UI thread a chance to update.
+        Thread.yield();
+
         try {
-            urlStream.close();
-        } catch (IOException ex) {
-            // Can't close, needn't be reported.
+            urlStream = HttpTransport.decode(urlStream, contentEncoding);
+            // Read all bytes from the stream, presizing the buffer if the
+            // server told us how long the content is.
+            ByteBuffer data = readStream(urlStream, expectedLength, url.toString(), SpillFile.getSpillThreshold(), download);
+            if (compressedCounter != null)
+                BrowserMonkeyLogger.info("Read "+data.remaining()+" bytes from "+compressedCounter.getCount()
+                        +" "+contentEncoding+" compressed bytes for "+url);
+            return data;
+        } finally {
+            try {
+                urlStream.close();
+            } catch (IOException ex) {
+                // Can't close, needn't be reported.
+            }
+        }
+    }
+
+    // Size of each block read from a stream, and the initial buffer size when
+    // the content length is unknown.
+    private static final int READ_BLOCK_SIZE = 8192;
+    // Minimum number of bytes between progress updates to the status bar.
+    private static final int PROGRESS_INTERVAL = 64*1024;
+    // Size of each block copied from a stream into a spill file.
+    private static final int SPILL_BLOCK_SIZE = 64*1024;
+
+    /**
+     * Reads all remaining bytes from a stream into an array using block reads.
+     * If the expected length is known (not negative) the buffer is allocated
+     * at exactly that size, otherwise it starts small and doubles as needed.
+     * Progress is reported to the status bar as the bytes arrive.
+     * @param stream the stream to read to the end of
+     * @param expectedLength the expected number of bytes, or -1 if unknown
+     * @param name the name of the resource for progress messages
+     * @return an array containing exactly the bytes read
+     * @throws IOException
+     */
+    public static byte[] readStream(InputStream stream, int expectedLength, String name) throws IOException {
+        return toArray(readStream(stream, expectedLength, name, Long.MAX_VALUE, null));
+    }
+
+    /**
+     * Reads all remaining bytes from a stream like <code>readStream</code>,
+     * except that data larger than the spill threshold is written to a
+     * temporary file instead of being held on the heap, and returned as a
+     * mapping of that file.
+     * @param stream the stream to read to the end of
+     * @param expectedLength the expected number of bytes, or -1 if unknown
+     * @param name the name of the resource for progress messages
+     * @return a buffer positioned at the start of the bytes read
+     * @throws IOException
+     * @see SpillFile#setSpillThreshold(long)
+     */
+    public static ByteBuffer readStreamBuffer(InputStream stream, int expectedLength, String name) throws IOException {
+        return readStream(stream, expectedLength, name, SpillFile.getSpillThreshold(), null);
+    }
+
+    // Reads a stream, feeding each block read into the download stream if
+    // there is one.
+    private static ByteBuffer readStream(InputStream stream, int expectedLength, String name, long spillThreshold,
+            DownloadStream download) throws IOException {
+        // Don't bother buffering data known to be too large for the heap.
+        if (expectedLength > spillThreshold)
+            return spillStream(stream, new byte[0], 0, -1, expectedLength, name, download);
+
+        byte[] buffer = new byte[expectedLength >= 0 ? expectedLength : READ_BLOCK_SIZE];
+        int count = 0;
+        int nextProgress = PROGRESS_INTERVAL;
+
+        while (true) {
+            if (count == buffer.length) {
+                // Buffer is full, check for the end of the stream before
+                // growing, so exact presized reads don't allocate again.
+                int next = stream.read();
+                if (next == -1)
+                    break;
+                if (download != null)
+                    download.write(new byte[] {(byte)next}, 0, 1);
+                if (count >= spillThreshold)
+                    return spillStream(stream, buffer, count, next, expectedLength, name, download);
+                // Grow, but not past the threshold until it's reached.
+                long grownLength = Math.max(buffer.length*2L, READ_BLOCK_SIZE);
+                grownLength = Math.min(grownLength, Math.max(spillThreshold, buffer.length+1L));
+                buffer = Arrays.copyOf(buffer, (int)Math.min(grownLength, Integer.MAX_VALUE-8));
+                buffer[count++] = (byte)next;
+            }
+
+            int read = stream.read(buffer, count, Math.min(buffer.length-count, READ_BLOCK_SIZE));
+            if (read == -1)
+                break;
+            if (download != null)
+                download.write(buffer, count, read);
+            count += read;
+
+            if (count >= nextProgress) {
+                reportProgress(name, count, expectedLength);
+                nextProgress = count+PROGRESS_INTERVAL;
+            }
         }
 
-        // Copy to a new byte array for returning.
-        byte[] byteData = new byte[data.size()];
-        for (int i = 0; i < byteData.length; i++)
-            byteData[i] = data.get(i);
+        // Trim to the number of bytes actually read, if they differ.
+        if (count != buffer.length)
+            buffer = Arrays.copyOf(buffer, count);
+        return ByteBuffer.wrap(buffer);
+    }
+
+    // Writes the bytes read so far, the byte read after them if there is one
+    // (next, otherwise -1) and the rest of the stream to a spill file,
+    // returning its mapping.
+    private static ByteBuffer spillStream(InputStream stream, byte[] head, int headLength, int next,
+            int expectedLength, String name, DownloadStream download) throws IOException {
+        BrowserMonkeyLogger.info("Spilling "+name+" to disk after "+headLength+" bytes.");
+        SpillFile spill = new SpillFile();
+        try {
+            spill.write(head, 0, headLength);
+            if (next != -1)
+                spill.write(new byte[] {(byte)next}, 0, 1);
+            byte[] block = new byte[SPILL_BLOCK_SIZE];
+            long nextProgress = headLength+PROGRESS_INTERVAL;
+            int read;
+            while ((read = stream.read(block)) != -1) {
+                spill.write(block, 0, read);
+                if (download != null)
+                    download.write(block, 0, read);
+                if (spill.size() >= nextProgress) {
+                    reportProgress(name, spill.size(), expectedLength);
+                    nextProgress = spill.size()+PROGRESS_INTERVAL;
+                }
+            }
+            return spill.map();
+        } catch (IOException ex) {
+            spill.discard();
+            throw ex;
+        }
+    }
 
-        return byteData;
+    // Logs the number of bytes read so far to the status bar.
+    private static void reportProgress(String name, long bytesRead, int expectedLength) {
+        String progress = "Loading "+name+" ("+(bytesRead/1024)+" KB";
+        if (expectedLength > 0)
+            progress += " of "+(expectedLength/1024)+" KB";
+        BrowserMonkeyLogger.progress(progress+")");
     }
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * Reads entries of jar files, e.g. resources bundled with plugins, from
+ * <code>jar:</code> URLs.
+ * @author Paul Calcraft
+ */
+public class JarResourceProvider implements ResourceProvider {
+    public boolean canLoad(URL url) {
+        return url.getProtocol().equals("jar");
+    }
+
+    public Resource load(URL url) throws IOException {
+        return IOUtility.readURLConnection(url);
+    }
+}
@@ -0,0 +1,48 @@
+package browsermonkey.utility;
+
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Serves resources held in memory, keyed by normalised URL. Resources put here
+ * take the place of whatever the URL would otherwise load, e.g. so plugins can
+ * supply generated content or benchmarks can run without any I/O.
+ * @author Paul Calcraft
+ */
+public class MemoryResourceProvider implements ResourceProvider {
+    private final Map<String, Resource> resources = new HashMap<String, Resource>();
+
+    /**
+     * Makes data available at a URL, replacing anything previously put there.
+     * @param url
+     * @param contentType the Content-Type to serve it with, may be null
+     * @param data which must not be modified afterwards
+     */
+    public synchronized void put(URL url, String contentType, byte[] data) {
+        resources.put(IOUtility.normaliseURL(url), new Resource(url, contentType, ByteBuffer.wrap(data)));
+    }
+
+    /**
+     * Removes the data at a URL, if any.
+     * @param url
+     */
+    public synchronized void remove(URL url) {
+        resources.remove(IOUtility.normaliseURL(url));
+    }
+
+    public synchronized void clear() {
+        resources.clear();
+    }
+
+    public synchronized boolean canLoad(URL url) {
+        return resources.containsKey(IOUtility.normaliseURL(url));
+    }
+
+    public synchronized Resource load(URL url) {
+        Resource resource = resources.get(IOUtility.normaliseURL(url));
+        if (resource == null)
+            return new Resource(url, 404);
+        return resource.share();
+    }
+}
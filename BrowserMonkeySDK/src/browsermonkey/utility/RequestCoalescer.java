@@ -0,0 +1,94 @@
+package browsermonkey.utility;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Coalesces concurrent reads of the same normalised URL, so that while one
+ * read is in flight, any others for the same resource wait for and share its
+ * result instead of downloading it again.
+ * @author Paul Calcraft
+ */
+public class RequestCoalescer {
+    // A read in progress, and its result once complete.
+    private static class Flight {
+        private Resource result;
+
+        private synchronized void complete(Resource result) {
+            this.result = result;
+            notifyAll();
+        }
+
+        // Waits for the result. The read itself can't be interrupted, so
+        // neither can waiting for it, but the interrupt is preserved.
+        private synchronized Resource await() {
+            boolean interrupted = false;
+            while (result == null) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            return result;
+        }
+    }
+
+    private final Map<String, Flight> flights = new HashMap<String, Flight>();
+    private int coalescedCount;
+
+    /**
+     * Returns the number of reads that were served by sharing another read
+     * already in flight.
+     * @return
+     */
+    public synchronized int getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Reads a URL with <code>IOUtility.fetchResource</code>, unless a read of
+     * the same resource is already in flight, in which case its result is
+     * shared.
+     * @param url the URL to read, not null
+     * @return the result, with its own view of any shared data
+     */
+    public Resource read(URL url) {
+        String key = IOUtility.normaliseURL(url);
+        Flight flight;
+        boolean leader = false;
+        synchronized (this) {
+            flight = flights.get(key);
+            if (flight == null) {
+                flight = new Flight();
+                flights.put(key, flight);
+                leader = true;
+            }
+            else
+                coalescedCount++;
+        }
+
+        if (!leader)
+            return share(flight.await());
+
+        Resource result = null;
+        try {
+            result = IOUtility.fetchResource(url);
+        } finally {
+            synchronized (this) {
+                flights.remove(key);
+            }
+            if (result == null)
+                result = new Resource(url, 404);
+            flight.complete(result);
+        }
+        return share(result);
+    }
+
+    // Gives a caller its own buffer position over shared data.
+    private static Resource share(Resource result) {
+        return result.share();
+    }
+}
@@ -0,0 +1,201 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * The result of reading a URL: either its data, headers and status, or the
+ * error code explaining why it couldn't be read. Also records how long the
+ * read took.
+ * @author Paul Calcraft
+ */
+public class Resource {
+    private URL url;
+    private int status;
+    private int error;
+    private String contentType;
+    private ByteBuffer data;
+    private Map<String, List<String>> headers;
+    private long loadTime;
+    // When the data may have changed, as a System.currentTimeMillis time.
+    private long expires = Long.MAX_VALUE;
+
+    /**
+     * Constructs a successfully read resource.
+     * @param url
+     * @param contentType the Content-Type header value, or null if unknown
+     * @param data the data, positioned at its start
+     */
+    public Resource(URL url, String contentType, ByteBuffer data) {
+        this(url, HttpURLConnection.HTTP_OK, headersFor(contentType), data);
+    }
+
+    /**
+     * Constructs a successfully read resource with its response headers.
+     * @param url
+     * @param status the status code it was served with, e.g. 200
+     * @param headers the response headers, which are copied
+     * @param data the data, positioned at its start
+     */
+    public Resource(URL url, int status, Map<String, List<String>> headers, ByteBuffer data) {
+        this.url = url;
+        this.status = status;
+        this.data = data;
+        this.headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            // The status line is given with a null name.
+            if (header.getKey() != null)
+                this.headers.put(header.getKey(), Collections.unmodifiableList(new ArrayList<String>(header.getValue())));
+        }
+        contentType = getHeader("Content-Type");
+    }
+
+    /**
+     * Constructs a resource that could not be read.
+     * @param url
+     * @param error the error code (e.g. 404)
+     */
+    public Resource(URL url, int error) {
+        this(url, error, error);
+    }
+
+    /**
+     * Constructs a resource that could not be read, whose status is not the
+     * error code it is reported with, e.g. an HTTP 500 reported as 404.
+     * @param url
+     * @param error the error code (e.g. 404)
+     * @param status the status code it was served with
+     */
+    Resource(URL url, int error, int status) {
+        this.url = url;
+        this.error = error;
+        this.status = status;
+        headers = Collections.emptyMap();
+    }
+
+    // Constructs a copy sharing the same data through its own view.
+    private Resource(Resource resource) {
+        url = resource.url;
+        status = resource.status;
+        error = resource.error;
+        contentType = resource.contentType;
+        headers = resource.headers;
+        loadTime = resource.loadTime;
+        expires = resource.expires;
+        if (resource.data != null)
+            data = resource.data.duplicate();
+    }
+
+    private static Map<String, List<String>> headersFor(String contentType) {
+        if (contentType == null)
+            return Collections.emptyMap();
+        return Collections.singletonMap("Content-Type", Collections.singletonList(contentType));
+    }
+
+    /**
+     * Returns a copy for another reader, with its own position in the data.
+     * @return
+     */
+    public Resource share() {
+        return new Resource(this);
+    }
+
+    public URL getURL() {
+        return url;
+    }
+
+    /**
+     * Returns the error code of the read: 408 if it timed out, otherwise 404
+     * for any failure, whatever status it was served with.
+     * @return 0 if loaded, otherwise the error code (e.g. 404)
+     */
+    public int getError() {
+        return data == null ? error : 0;
+    }
+
+    /**
+     * Returns the status of the read, which for HTTP is the response status.
+     * @return the status code, e.g. 200 if loaded or 403 if forbidden
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the Content-Type the resource was served with.
+     * @return the header value, or null if unknown
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the response headers, with names looked up ignoring case.
+     * @return an unmodifiable map of header names to their values
+     */
+    public Map<String, List<String>> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Returns the last value of a response header.
+     * @param name the header name, in any case
+     * @return the value, or null if there isn't one
+     */
+    public String getHeader(String name) {
+        List<String> values = headers.get(name);
+        if (values == null || values.isEmpty())
+            return null;
+        return values.get(values.size()-1);
+    }
+
+    /**
+     * Returns the data of the resource.
+     * @return the data positioned at its start, or null if there was an error
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    /**
+     * Returns a stream over the data of the resource, for stream based
+     * decoders. The data is not copied.
+     * @return the stream, or null if there was an error
+     */
+    public InputStream getBody() {
+        if (data == null)
+            return null;
+        return new ByteBufferInputStream(data);
+    }
+
+    /**
+     * Returns how long the original read took, from starting it to having
+     * all the data. Resources shared from a cache or another read report the
+     * time of the read that loaded them.
+     * @return the time in milliseconds
+     */
+    public double getLoadTime() {
+        return loadTime/1e6;
+    }
+
+    void setLoadTime(long nanoseconds) {
+        loadTime = nanoseconds;
+    }
+
+    /**
+     * Returns when the resource stops being fresh, after which it must be
+     * read again rather than reused, e.g. from a response's Cache-Control or
+     * Expires header.
+     * @return the time, as for <code>System.currentTimeMillis</code>, or
+     * <code>Long.MAX_VALUE</code> if its source gives no expiry
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    void setExpires(long expires) {
+        this.expires = expires;
+    }
+}
@@ -0,0 +1,224 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A bounded in-memory cache of loaded resources, keyed by normalised URL.
+ * The total size of cached data on the heap is kept within a byte budget by
+ * evicting the least recently used resources. Data mapped from files, such as
+ * large local files and cached HTTP bodies, isn't on the heap, so it has a
+ * budget of its own and doesn't push the data that is out of the cache. Resources are reused only while they're
+ * fresh, as their source says, and local files only until they're modified.
+ * Failed reads are cached for a short time too, so a missing resource
+ * referenced many times is only requested once.
+ * Cached data is shared between callers and must not be modified.
+ * @author Paul Calcraft
+ */
+public class ResourceCache {
+    private static class Entry {
+        private Resource resource;
+        private long expires;
+        // For local files, the file and when it was last modified before it
+        // was read.
+        private File file;
+        private long modified;
+
+        private Entry(Resource resource, long expires) {
+            this.resource = resource;
+            this.expires = expires;
+        }
+
+        private boolean isUsable() {
+            return System.currentTimeMillis() < expires && (file == null || file.lastModified() == modified);
+        }
+
+        // The size of the data, if it's on the heap.
+        private int getSize() {
+            ByteBuffer data = resource.getData();
+            return data == null || data.isDirect() ? 0 : data.remaining();
+        }
+
+        // The size of the data, if it's mapped from a file.
+        private int getMappedSize() {
+            ByteBuffer data = resource.getData();
+            return data == null || !data.isDirect() ? 0 : data.remaining();
+        }
+    }
+
+    private LinkedHashMap<String, Entry> entries;
+    private long byteBudget;
+    private long mappedByteBudget;
+    private long failureLifetime;
+    private long size;
+    private long mappedSize;
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * Constructs an empty cache.
+     * @param byteBudget the maximum total size of cached data on the heap in
+     * bytes
+     * @param mappedByteBudget the maximum total size of cached data mapped
+     * from files in bytes
+     * @param failureLifetime how long failed reads are remembered, in
+     * milliseconds
+     */
+    public ResourceCache(long byteBudget, long mappedByteBudget, long failureLifetime) {
+        this.byteBudget = byteBudget;
+        this.mappedByteBudget = mappedByteBudget;
+        this.failureLifetime = failureLifetime;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Sets the byte budget, evicting resources if the cache no longer fits.
+     * @param byteBudget
+     */
+    public synchronized void setByteBudget(long byteBudget) {
+        this.byteBudget = byteBudget;
+        evict();
+    }
+
+    public synchronized long getByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * Sets the budget for data mapped from files, evicting resources if the
+     * cache no longer fits.
+     * @param mappedByteBudget
+     */
+    public synchronized void setMappedByteBudget(long mappedByteBudget) {
+        this.mappedByteBudget = mappedByteBudget;
+        evict();
+    }
+
+    public synchronized long getMappedByteBudget() {
+        return mappedByteBudget;
+    }
+
+    /**
+     * Returns the total size of cached data on the heap.
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the total size of cached data mapped from files.
+     * @return the size in bytes
+     */
+    public synchronized long getMappedSize() {
+        return mappedSize;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Removes all cached resources and failures.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+        mappedSize = 0;
+    }
+
+    /**
+     * Reads a URL through the cache, with the same contract as
+     * <code>IOUtility.readResource</code>.
+     * @param url the URL to read, may be null
+     * @return the resource, with its own view of any shared data
+     */
+    public Resource read(URL url) {
+        if (url == null)
+            return IOUtility.readResource(url);
+
+        String key = IOUtility.normaliseURL(url);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.isUsable()) {
+                    hitCount++;
+                    return entry.resource.share();
+                }
+                // The failure or resource has expired, or the file has been
+                // modified, so read it again.
+                remove(key);
+            }
+            missCount++;
+        }
+
+        File file = IOUtility.getLocalFile(url);
+        long modified = file == null ? 0 : file.lastModified();
+        Resource resource = IOUtility.readResource(url);
+
+        synchronized (this) {
+            Entry entry;
+            if (resource.getError() != 0) {
+                entry = new Entry(resource, System.currentTimeMillis()+failureLifetime);
+            } else {
+                entry = new Entry(resource.share(), resource.getExpires());
+                entry.file = file;
+                entry.modified = modified;
+            }
+            if (entry.getSize() <= byteBudget && entry.getMappedSize() <= mappedByteBudget && entry.isUsable()) {
+                remove(key);
+                entries.put(key, entry);
+                size += entry.getSize();
+                mappedSize += entry.getMappedSize();
+                evict();
+            }
+        }
+
+        return resource;
+    }
+
+    /**
+     * Reads a URL through the cache, with the same contract as
+     * <code>IOUtility.readFile</code>.
+     * @param url the URL to read, may be null
+     * @param outErrorCode pseudo out parameter, should always have one element
+     * @return the data, or null if there was an error
+     */
+    public byte[] readFile(URL url, int[] outErrorCode) {
+        Resource resource = read(url);
+        if (resource.getError() != 0) {
+            outErrorCode[0] = resource.getError();
+            return null;
+        }
+        return IOUtility.toArray(resource.getData());
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.getSize();
+            mappedSize -= entry.getMappedSize();
+        }
+    }
+
+    // Removes least recently used entries until the cache is within both
+    // budgets, only taking those that count against a budget it's over.
+    private void evict() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while ((size > byteBudget || mappedSize > mappedByteBudget) && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            if ((size > byteBudget && entry.getSize() > 0)
+                    || (mappedSize > mappedByteBudget && entry.getMappedSize() > 0)) {
+                size -= entry.getSize();
+                mappedSize -= entry.getMappedSize();
+                eldest.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads resources asynchronously through a set of pluggable
+ * <code>ResourceProvider</code>s. Loads are run by the fetch scheduler, so
+ * callers can carry on parsing or rendering while they download, and either
+ * wait on the returned fetch or be told of the result by a listener.
+ * Concurrent loads of the same resource share a single read.
+ * <p>
+ * Providers are consulted most recently added first, after the in-memory
+ * provider, so plugins can add sources or take over existing ones. By default
+ * there are providers for site archives, local files, http(s) and jar files;
+ * anything else is read through its <code>URLConnection</code>.
+ * @author Paul Calcraft
+ */
+public class ResourceLoader {
+    private final List<ResourceProvider> providers = new CopyOnWriteArrayList<ResourceProvider>();
+    private final MemoryResourceProvider memoryProvider = new MemoryResourceProvider();
+    private FetchScheduler scheduler;
+
+    /**
+     * Constructs a loader with the default providers.
+     * @param scheduler runs the loads
+     */
+    public ResourceLoader(FetchScheduler scheduler) {
+        this.scheduler = scheduler;
+        providers.add(memoryProvider);
+        providers.add(new ArchiveResourceProvider());
+        providers.add(new FileResourceProvider());
+        providers.add(new HttpResourceProvider());
+        providers.add(new JarResourceProvider());
+    }
+
+    /**
+     * Adds a provider, which is consulted before all but the in-memory
+     * provider.
+     * @param provider
+     */
+    public void addProvider(ResourceProvider provider) {
+        providers.add(1, provider);
+    }
+
+    public void removeProvider(ResourceProvider provider) {
+        providers.remove(provider);
+    }
+
+    /**
+     * Returns the provider serving resources from memory, which takes
+     * precedence over every other source.
+     * @return
+     */
+    public MemoryResourceProvider getMemoryProvider() {
+        return memoryProvider;
+    }
+
+    /**
+     * Starts loading a URL in the background.
+     * @param url the URL to load, may be null
+     * @param priority
+     * @param listener notified of the result on the loading thread, may be
+     * null
+     * @return the load, which can be waited on for the result, cancelled or
+     * given a new priority
+     */
+    public FetchScheduler.Fetch<Resource> load(URL url, FetchPriority priority, FetchListener<Resource> listener) {
+        return scheduler.submit(url, priority, listener);
+    }
+
+    /**
+     * Starts loading a URL in the background, streaming its body as it
+     * arrives rather than waiting for all of it.
+     * @param url the URL to load, may be null
+     * @param priority
+     * @return the stream of the body, which must be closed
+     */
+    public DownloadStream stream(final URL url, FetchPriority priority) {
+        final DownloadStream download = new DownloadStream(url);
+        download.setFetch(scheduler.submit(FetchScheduler.getHost(url), priority, new Callable<Resource>() {
+            public Resource call() {
+                Resource resource = null;
+                IOUtility.setDownloadStream(download);
+                try {
+                    resource = IOUtility.readResource(url);
+                } finally {
+                    IOUtility.setDownloadStream(null);
+                    if (resource == null)
+                        resource = new Resource(url, 404);
+                    download.finish(resource);
+                }
+                return resource;
+            }
+        }, null));
+        return download;
+    }
+
+    /**
+     * Loads a URL and waits for the result.
+     * @param url the URL to load, may be null
+     * @param priority
+     * @return
+     */
+    public Resource loadAndWait(URL url, FetchPriority priority) {
+        FetchScheduler.Fetch<Resource> fetch = load(url, priority, null);
+        try {
+            return fetch.get();
+        } catch (InterruptedException ex) {
+            // The load is no longer wanted.
+            fetch.cancel(false);
+            Thread.currentThread().interrupt();
+            return new Resource(url, 404);
+        } catch (ExecutionException ex) {
+            BrowserMonkeyLogger.warning("Loading "+url+" failed: "+ex.getCause());
+            return new Resource(url, 404);
+        }
+    }
+
+    /**
+     * Reads a URL with the first provider that can load it, on the calling
+     * thread, without sharing the read with any others in flight.
+     * @param url not null
+     * @return
+     */
+    Resource read(URL url) {
+        long start = System.nanoTime();
+        Resource resource;
+        try {
+            ResourceProvider provider = findProvider(url);
+            if (provider != null)
+                resource = provider.load(url);
+            else
+                resource = IOUtility.readURLConnection(url);
+        } catch (SocketTimeoutException ex) {
+            // If timeout, set error code to 408.
+            resource = new Resource(url, 408);
+        } catch (IOException ex) {
+            // If any other, assume file not found.
+            resource = new Resource(url, 404);
+        }
+        resource.setLoadTime(System.nanoTime()-start);
+        return resource;
+    }
+
+    private ResourceProvider findProvider(URL url) {
+        for (ResourceProvider provider : providers) {
+            if (provider.canLoad(url))
+                return provider;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,29 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * Reads resources from one kind of source for <code>ResourceLoader</code>,
+ * e.g. local files or HTTP. Providers may be called from several threads at
+ * once.
+ * @author Paul Calcraft
+ */
+public interface ResourceProvider {
+    /**
+     * Returns whether this provider reads the URL.
+     * @param url
+     * @return
+     */
+    boolean canLoad(URL url);
+
+    /**
+     * Reads the URL, blocking until all its data is read.
+     * @param url a URL this provider can load
+     * @return the resource, or one with an error code if the source reported
+     * an error
+     * @throws IOException if it couldn't be read; timeouts are reported as 408
+     * and anything else as 404
+     */
+    Resource load(URL url) throws IOException;
+}
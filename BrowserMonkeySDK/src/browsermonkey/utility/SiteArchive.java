@@ -0,0 +1,268 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A packed, memory-mapped archive of a whole site, for offline browsing. The
+ * archive is a single file: a header, an index of paths to offsets, and then
+ * the data of every file. Entries are addressed by URLs of the form
+ * <code>bmarchive:/path/to/site.bma!/dir/page.html</code>, so relative links
+ * resolve within the archive, and their data is read straight from the
+ * mapping.
+ * @author Paul Calcraft
+ */
+public class SiteArchive {
+    /**
+     * The URL protocol for entries in archives.
+     */
+    public static final String PROTOCOL = "bmarchive";
+    /**
+     * The file extension of archives.
+     */
+    public static final String EXTENSION = ".bma";
+    // Identifies the file format and version.
+    static final byte[] MAGIC = { 'B', 'M', 'A', 'R', 'C', 'H', '0', '1' };
+    // Separates the archive file from the entry path in URLs.
+    private static final String ENTRY_SEPARATOR = "!/";
+
+    // Archives opened so far, keyed by absolute file.
+    private static final Map<File, SiteArchive> openArchives = new HashMap<File, SiteArchive>();
+
+    private File file;
+    private long modified;
+    private ByteBuffer mapping;
+    // Maps entry paths to their offset and length in the mapping.
+    private Map<String, int[]> index;
+
+    // Handles opening connections to archive URLs, and resolves relative URLs
+    // against them using the standard hierarchical rules.
+    private static final URLStreamHandler handler = new URLStreamHandler() {
+        @Override
+        protected URLConnection openConnection(URL url) {
+            return new ArchiveConnection(url);
+        }
+    };
+
+    // A connection to an archive entry, for code that reads URLs through
+    // URLConnection rather than IOUtility.
+    private static class ArchiveConnection extends URLConnection {
+        private ByteBuffer data;
+
+        public ArchiveConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (data == null)
+                data = read(url);
+            connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            return new ByteBufferInputStream(data);
+        }
+
+        @Override
+        public int getContentLength() {
+            try {
+                connect();
+                return data.remaining();
+            } catch (IOException ex) {
+                return -1;
+            }
+        }
+
+        @Override
+        public String getContentType() {
+            return guessContentTypeFromName(url.getPath());
+        }
+    }
+
+    private SiteArchive(File file) throws IOException {
+        this.file = file;
+        modified = file.lastModified();
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Archive too large to map: "+file);
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+
+        readIndex();
+    }
+
+    // Reads the header and index from the start of the mapping.
+    private void readIndex() throws IOException {
+        try {
+            ByteBuffer header = mapping.duplicate();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException("Not a site archive: "+file);
+
+            int entryCount = header.getInt();
+            index = new HashMap<String, int[]>(entryCount*2);
+            for (int i = 0; i < entryCount; i++) {
+                byte[] pathBytes = new byte[header.getShort() & 0xFFFF];
+                header.get(pathBytes);
+                int offset = header.getInt();
+                int length = header.getInt();
+                if (offset < 0 || length < 0 || offset > mapping.capacity()-length)
+                    throw new IOException("Corrupt site archive index: "+file);
+                index.put(new String(pathBytes, "UTF-8"), new int[] { offset, length });
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated site archive: "+file);
+        }
+    }
+
+    /**
+     * Returns whether a file looks like a site archive, by its extension.
+     * @param file
+     * @return
+     */
+    public static boolean isArchive(File file) {
+        return file.getName().toLowerCase().endsWith(EXTENSION) && file.isFile();
+    }
+
+    /**
+     * Opens an archive, mapping it into memory. Archives are kept open and
+     * shared, and reopened if the file changes.
+     * @param file
+     * @return
+     * @throws IOException if the file isn't a readable archive
+     */
+    public static SiteArchive open(File file) throws IOException {
+        file = file.getAbsoluteFile();
+        synchronized (openArchives) {
+            SiteArchive archive = openArchives.get(file);
+            if (archive == null || archive.modified != file.lastModified()) {
+                archive = new SiteArchive(file);
+                openArchives.put(file, archive);
+                BrowserMonkeyLogger.info("Opened site archive "+file+" with "+archive.index.size()+" entries.");
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * Returns the data of an entry, read straight from the mapping.
+     * @param path the entry path, relative to the archive root
+     * @return the data, or null if there is no such entry
+     */
+    public ByteBuffer getEntry(String path) {
+        int[] location = index.get(path);
+        if (location == null)
+            return null;
+        ByteBuffer entry = mapping.duplicate();
+        entry.position(location[0]);
+        entry.limit(location[0]+location[1]);
+        return entry.slice();
+    }
+
+    /**
+     * Finds the index page for a directory in the archive.
+     * @param directory the directory path, empty for the root, otherwise
+     * ending in "/"
+     * @return the entry path of the index page, or null if there isn't one
+     */
+    public String findIndex(String directory) {
+        for (String name : new String[] { "index.html", "index.htm" }) {
+            if (index.containsKey(directory+name))
+                return directory+name;
+        }
+        return null;
+    }
+
+    /**
+     * Constructs the URL of an entry in an archive.
+     * @param file the archive file
+     * @param path the entry path, relative to the archive root
+     * @return
+     */
+    public static URL getURL(File file, String path) throws MalformedURLException {
+        String archivePath = file.getAbsoluteFile().toURI().getRawPath();
+        return new URL(PROTOCOL, "", -1, archivePath+ENTRY_SEPARATOR+path, handler);
+    }
+
+    /**
+     * Parses an archive URL typed as an address, e.g.
+     * "bmarchive:/site.bma!/page.html".
+     * @param spec
+     * @return
+     * @throws MalformedURLException
+     */
+    public static URL parseURL(String spec) throws MalformedURLException {
+        return new URL(null, spec, handler);
+    }
+
+    /**
+     * Resolves an archive URL to an existing entry, using a directory's index
+     * page if it refers to a directory.
+     * @param url an archive URL
+     * @return the resolved URL, or null if there's no such entry
+     */
+    public static URL resolve(URL url) {
+        try {
+            String path = url.getPath();
+            int separator = path.indexOf(ENTRY_SEPARATOR);
+            if (separator == -1)
+                return null;
+            File file = new File(decode(path.substring(0, separator)));
+            String entry = decode(path.substring(separator+ENTRY_SEPARATOR.length()));
+            SiteArchive archive = open(file);
+            if (archive.index.containsKey(entry))
+                return url;
+
+            // Treat as a directory.
+            if (!entry.isEmpty() && !entry.endsWith("/"))
+                entry += "/";
+            String indexEntry = archive.findIndex(entry);
+            if (indexEntry == null)
+                return null;
+            return getURL(file, indexEntry);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the data of the entry an archive URL refers to.
+     * @param url an archive URL
+     * @return the data, read straight from the mapping
+     * @throws IOException if the archive or entry can't be found
+     */
+    public static ByteBuffer read(URL url) throws IOException {
+        String path = url.getPath();
+        int separator = path.indexOf(ENTRY_SEPARATOR);
+        if (separator == -1)
+            throw new MalformedURLException("No entry in archive URL: "+url);
+        SiteArchive archive = open(new File(decode(path.substring(0, separator))));
+        ByteBuffer entry = archive.getEntry(decode(path.substring(separator+ENTRY_SEPARATOR.length())));
+        if (entry == null)
+            throw new FileNotFoundException("No entry for "+url);
+        return entry;
+    }
+
+    // Decodes %XX escapes in a URL path as UTF-8.
+    private static String decode(String path) {
+        if (path.indexOf('%') == -1)
+            return path;
+        try {
+            return new URI(path).getPath();
+        } catch (URISyntaxException ex) {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Packs a directory into a site archive for offline browsing. Run with the
+ * directory to pack and the archive file to write, e.g.
+ * <code>java browsermonkey.utility.SiteArchiveBuilder site site.bma</code>,
+ * then open the archive as a local file.
+ * @author Paul Calcraft
+ */
+public class SiteArchiveBuilder {
+    // Size of the block each file is copied through.
+    private static final int COPY_BLOCK_SIZE = 64*1024;
+
+    /**
+     * Writes every file under a directory into an archive. Entry paths are
+     * relative to the directory and separated by "/".
+     * @param directory the root of the site
+     * @param archive the archive file to write
+     * @return the number of entries written
+     * @throws IOException
+     */
+    public static int build(File directory, File archive) throws IOException {
+        if (!directory.isDirectory())
+            throw new FileNotFoundException("Not a directory: "+directory);
+
+        List<String> paths = new ArrayList<String>();
+        List<File> files = new ArrayList<File>();
+        collectFiles(directory, "", paths, files);
+
+        // Work out the size of the header so the data offsets are known
+        // before the index is written.
+        byte[][] pathBytes = new byte[paths.size()][];
+        long offset = SiteArchive.MAGIC.length+4;
+        for (int i = 0; i < paths.size(); i++) {
+            pathBytes[i] = paths.get(i).getBytes("UTF-8");
+            if (pathBytes[i].length > 0xFFFF)
+                throw new IOException("Path too long for archive: "+paths.get(i));
+            offset += 2+pathBytes[i].length+4+4;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+        try {
+            out.write(SiteArchive.MAGIC);
+            out.writeInt(paths.size());
+            for (int i = 0; i < paths.size(); i++) {
+                long length = files.get(i).length();
+                if (offset+length > Integer.MAX_VALUE)
+                    throw new IOException("Archive too large to map: "+archive);
+                out.writeShort(pathBytes[i].length);
+                out.write(pathBytes[i]);
+                out.writeInt((int)offset);
+                out.writeInt((int)length);
+                offset += length;
+            }
+
+            byte[] block = new byte[COPY_BLOCK_SIZE];
+            for (File file : files)
+                copyFile(file, out, block);
+        } finally {
+            out.close();
+        }
+        return paths.size();
+    }
+
+    // Adds the files under a directory in a stable order, recursing into
+    // subdirectories.
+    private static void collectFiles(File directory, String prefix, List<String> paths, List<File> files) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null)
+            throw new IOException("Couldn't list directory: "+directory);
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory())
+                collectFiles(child, prefix+child.getName()+"/", paths, files);
+            else {
+                paths.add(prefix+child.getName());
+                files.add(child);
+            }
+        }
+    }
+
+    // Copies a file's whole content to the archive, checking it hasn't changed
+    // size since the index was written.
+    private static void copyFile(File file, OutputStream out, byte[] block) throws IOException {
+        long expected = file.length();
+        long copied = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while (copied < expected && (read = in.read(block, 0, (int)Math.min(block.length, expected-copied))) != -1) {
+                out.write(block, 0, read);
+                copied += read;
+            }
+        } finally {
+            in.close();
+        }
+        if (copied != expected)
+            throw new IOException("File changed while archiving: "+file);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: SiteArchiveBuilder <directory> <archive"+SiteArchive.EXTENSION+">");
+            System.exit(1);
+        }
+        try {
+            int entries = build(new File(args[0]), new File(args[1]));
+            System.out.println("Wrote "+entries+" entries to "+args[1]+".");
+        } catch (IOException ex) {
+            System.err.println("Couldn't build archive: "+ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package browsermonkey.utility;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A temporary file that data too large to hold on the heap is spilled into,
+ * and then read back through a memory mapping. The file is deleted once
+ * mapped, the mapping remaining valid until it is garbage collected, so
+ * spilled data takes no heap and leaves nothing behind.
+ * @author Paul Calcraft
+ */
+public class SpillFile {
+    // Reads of more bytes than this are spilled rather than held on the heap.
+    private static long spillThreshold = Long.getLong("browsermonkey.spillThreshold", 16L*1024*1024);
+
+    private File file;
+    private RandomAccessFile output;
+    private FileChannel channel;
+
+    /**
+     * Sets how many bytes a read may hold on the heap before it is spilled to
+     * a temporary file.
+     * @param bytes
+     */
+    public static void setSpillThreshold(long bytes) {
+        spillThreshold = bytes;
+    }
+
+    public static long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Creates an empty temporary file to write to.
+     * @throws IOException
+     */
+    public SpillFile() throws IOException {
+        file = File.createTempFile("browsermonkey", ".spill");
+        file.deleteOnExit();
+        output = new RandomAccessFile(file, "rw");
+        channel = output.getChannel();
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     * @return
+     * @throws IOException
+     */
+    public long size() throws IOException {
+        return channel.position();
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        write(ByteBuffer.wrap(data, offset, length));
+    }
+
+    public void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining())
+            channel.write(data);
+    }
+
+    /**
+     * Finishes writing and maps everything written, deleting the file.
+     * @return the data, read only
+     * @throws IOException if the data is too large to map
+     */
+    public ByteBuffer map() throws IOException {
+        try {
+            long size = channel.position();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Spilled data too large to map: "+size+" bytes");
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Abandons the data, deleting the file.
+     */
+    public void discard() {
+        try {
+            output.close();
+        } catch (IOException ex) {
+            // Nothing more to write, needn't be reported.
+        }
+        // Platforms that can't delete mapped files delete it on exit instead.
+        file.delete();
+    }
+}
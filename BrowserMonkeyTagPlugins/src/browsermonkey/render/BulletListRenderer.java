@@ -18,6 +18,6 @@ public class BulletListRenderer extends ListTagRenderer{
      */
     @Override
     protected String getListElementText(int index) {
-        return Renderer.STANDARD_INDENT+"•&nbsp;";
+        return Renderer.STANDARD_INDENT+"•\u00A0";
     }
 }
\ No newline at end of file
@@ -27,7 +27,7 @@ public class DefinitionListRenderer extends TagRenderer {
             }
             // If dd, create a layout node and pad with an indent text node to
             // the left.
-            if (((TagDocumentNode)itemNode).getType().equals("dd")) {
+            if (((TagDocumentNode)itemNode).getTypeId() == TagSymbolTable.DD) {
                 LayoutRenderNode itemLayoutNode = new LayoutRenderNode(linker);
                 itemLayoutNode.addNodePadding(renderer.constructIndentTextNode(formatting), null);
 
@@ -39,7 +39,7 @@ public class DefinitionListRenderer extends TagRenderer {
             }
             // Else render normally, but if dt ensure we're on a new line.
             else {
-                if (((TagDocumentNode)itemNode).getType().equals("dt"))
+                if (((TagDocumentNode)itemNode).getTypeId() == TagSymbolTable.DT)
                     parent.ensureNewLine();
                 renderer.render(itemNode, parent, formatting);
             }
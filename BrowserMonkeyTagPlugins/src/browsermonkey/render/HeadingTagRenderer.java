@@ -30,7 +30,7 @@ public class HeadingTagRenderer extends TagRenderer {
         LayoutRenderNode headingTextLayoutNode = new LayoutRenderNode(linker);
         // Get the heading text according to the renderer and pad the node.
         TextRenderNode headingNumberNode = new TextRenderNode(linker);
-        headingNumberNode.addText(renderer.getHeadingString(headingLevel)+"&nbsp;", newFormatting);
+        headingNumberNode.addText(renderer.getHeadingString(headingLevel)+"\u00A0", newFormatting);
         headingTextLayoutNode.addNodePadding(headingNumberNode, null);
 
         // Render all children into the padded layout node using the Renderer
@@ -1,12 +1,14 @@
 package browsermonkey.render;
 
 import browsermonkey.document.*;
+import browsermonkey.utility.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.text.AttributedCharacterIterator.Attribute;
 import java.util.*;
 import javax.imageio.*;
+import javax.swing.*;
 
 /**
  *
@@ -27,11 +29,19 @@ public class ImageTagRenderer extends TagRenderer {
         // Retrieve link from formatting (null if none).
         String hrefValue = (String)formatting.get(TextRenderNode.HREF_ATTRIBUTE);
 
-        // Attempt to load the resource as a byte array from the source URL.
-        byte[] imageResource = renderer.loadResource(src);
-        // Construct a new image node and add it.
-        ImageRenderNode img = new ImageRenderNode(linker, imageResource, hrefValue);
+        // Construct a new image node and add it, then load the image in the
+        // background so the page can be shown before its images arrive.
+        final ImageRenderNode img = new ImageRenderNode(linker, hrefValue);
         parent.addNode(img, LayoutRenderNode.WidthBehaviour.Maximal);
+        img.setFetch(renderer.loadResourceLater(src, renderer.nextResourcePriority(), new FetchListener<Resource>() {
+            public void fetched(Resource imageResource) {
+                img.imageLoaded(imageResource);
+            }
+
+            public void failed(Throwable cause) {
+                img.showImage(null);
+            }
+        }));
     }
 
     /**
@@ -41,6 +51,11 @@ public class ImageTagRenderer extends TagRenderer {
         private Image image;
         private static Image redX;
         private String link;
+        // Whether the image is still being fetched, in which case nothing is
+        // shown in its place yet.
+        private boolean loading = true;
+        private FetchScheduler.Fetch<Resource> fetch;
+        private float zoom = 1;
 
         // Static block to load the red x image from an embedded resource GIF.
         static {
@@ -55,21 +70,11 @@ public class ImageTagRenderer extends TagRenderer {
             }
         }
 
-        public ImageRenderNode(Linkable linker, byte[] imageResource, String link) {
+        public ImageRenderNode(Linkable linker, String link) {
             super(linker);
 
             this.link = link;
 
-            if (imageResource == null)
-                image = null;
-            else {
-                try {
-                    image = ImageIO.read(new ByteArrayInputStream(imageResource));
-                } catch (IOException ex) {
-                    image = null;
-                }
-            }
-
             if (link != null) {
                 // Add click listener for linking.
                 addMouseListener(new MouseListener() {
@@ -85,6 +90,44 @@ public class ImageTagRenderer extends TagRenderer {
             }
         }
 
+        public void setFetch(FetchScheduler.Fetch<Resource> fetch) {
+            this.fetch = fetch;
+        }
+
+        /**
+         * Decodes the fetched image, on the fetching thread, then shows it.
+         * @param imageResource the loaded image, or the error loading it
+         */
+        public void imageLoaded(Resource imageResource) {
+            Image loadedImage = null;
+            if (imageResource.getError() == 0) {
+                try {
+                    // Decode straight from the loaded data, without copying,
+                    // even if it's been spilled to disk.
+                    loadedImage = ImageIO.read(new ByteBufferImageInputStream(imageResource.getData()));
+                } catch (IOException ex) {
+                    loadedImage = null;
+                }
+            }
+
+            showImage(loadedImage);
+        }
+
+        /**
+         * Shows an image in place of the placeholder, or the red X.
+         * @param decodedImage the image, or null if it couldn't be loaded
+         */
+        public void showImage(final Image decodedImage) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    image = decodedImage;
+                    loading = false;
+                    updateSizes(zoom);
+                    repaint();
+                }
+            });
+        }
+
         /**
          * Update the image size according to zoom.
          */
@@ -115,11 +158,19 @@ public class ImageTagRenderer extends TagRenderer {
 
         @Override
         public void setZoomLevel(float zoomLevel) {
+            zoom = zoomLevel;
             updateSizes(zoomLevel);
         }
 
         @Override
         public void paint(Graphics g) {
+            // Painting means the placeholder is visible, so fetch it next.
+            if (loading) {
+                if (fetch != null)
+                    fetch.setPriority(FetchPriority.VISIBLE);
+                return;
+            }
+
             // If the image is loaded, draw it, else draw the red X if it is
             // loaded.
             Image drawImage;
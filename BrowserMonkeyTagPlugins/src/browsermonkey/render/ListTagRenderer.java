@@ -28,7 +28,7 @@ public abstract class ListTagRenderer extends TagRenderer {
 
         int i = 0;
         for (DocumentNode itemNode : tag.getChildren()) {
-            boolean listElement = itemNode instanceof TagDocumentNode && ((TagDocumentNode)itemNode).getType().equals("li");
+            boolean listElement = itemNode instanceof TagDocumentNode && ((TagDocumentNode)itemNode).getTypeId() == TagSymbolTable.LI;
 
             // Retrieve the indentation text, and add this as padding to the
             // individual list item.
@@ -40,7 +40,7 @@ public class TableTagRenderer extends TagRenderer {
 
         for (DocumentNode rowNode : tag.getChildren()) {
             // Only render tr nodes as rows.
-            if (!(rowNode instanceof TagDocumentNode) || !((TagDocumentNode)rowNode).getType().equals("tr"))
+            if (!(rowNode instanceof TagDocumentNode) || ((TagDocumentNode)rowNode).getTypeId() != TagSymbolTable.TR)
                 continue;
 
             // Start new row.
@@ -51,7 +51,7 @@ public class TableTagRenderer extends TagRenderer {
             // Get child td tags as cells.
             for (DocumentNode cellNode : row.getChildren()) {
                 // Only render td nodes as cells.
-                if (!(cellNode instanceof TagDocumentNode) || !((TagDocumentNode)cellNode).getType().equals("td"))
+                if (!(cellNode instanceof TagDocumentNode) || ((TagDocumentNode)cellNode).getTypeId() != TagSymbolTable.TD)
                     continue;
 
                 TagDocumentNode cell = (TagDocumentNode)cellNode;
@@ -143,7 +143,7 @@ public class TableTagRenderer extends TagRenderer {
         // Creates an empty cell.
         private LayoutRenderNode createEmptyCell() {
             LayoutRenderNode result = new LayoutRenderNode(linker);
-            result.getTextNode().addText("&nbsp;", Renderer.DEFAULT_FORMATTING);
+            result.getTextNode().addText("\u00A0", Renderer.DEFAULT_FORMATTING);
             return result;
         }
 